@@ -142,13 +142,18 @@ public class ClientInit implements ClientModInitializer
 
 		// Receiver for portal data from the server if a list command was issued.
 		ClientPlayNetworking.registerGlobalReceiver(SimplePortals.LIST_COMMAND_PACKET_ID, (minecraft, packetListener, receiveBuffer, sender) -> {
+			List<Address> addresses = receiveBuffer.readCollection(ArrayList::new, buffer -> {
+				Address address = new Address();
+				address.deserializeNBT(buffer.readNbt());
+
+				return address;
+			});
+
 			List<PortalInfo> portals = receiveBuffer.readCollection(ArrayList::new, buffer -> {
 				PortalInfo portal = new PortalInfo();
 				portal.dimension = ResourceKey.create(Registry.DIMENSION_REGISTRY, buffer.readResourceLocation());	// dimension
 				portal.location = buffer.readBlockPos();															// location
-				Address address = new Address();																	// address
-				address.deserializeNBT(buffer.readNbt());
-				portal.address = address;
+				portal.address = addresses.get(buffer.readVarInt());												// address
 				portal.power = buffer.readInt();																	// power
 
 				return portal;
@@ -4,6 +4,7 @@ import net.minecraft.core.Registry;
 import net.minecraft.resources.ResourceLocation;
 import net.minecraft.tags.TagKey;
 import net.minecraft.world.item.Item;
+import net.zarathul.simpleportals.common.PortalStorage;
 import net.zarathul.simpleportals.configuration.ConfigSetting;
 
 public final class Settings
@@ -48,6 +49,14 @@ public final class Settings
 		return (value >= 60);
 	}
 
+	@ConfigSetting(descriptionKey = "player_teleportation_chunk_timeout", description = "The maximum number of ticks a player teleportation waits for the destination chunk to load after the delay passed. Once the timeout is reached, the chunk is loaded synchronously.", category = "common", permissionLvl = 4)
+	public static int playerTeleportationChunkTimeout;
+	public static final int playerTeleportationChunkTimeoutDefault = 100;
+	public static boolean playerTeleportationChunkTimeoutValidator(int value)
+	{
+		return ((value >= 0) && (value <= 200));
+	}
+
 	@ConfigSetting(descriptionKey = "power_source", description = "The tag that items must have to be able to power portals (1 power per item).", category = "common", permissionLvl = 4)
 	public static ResourceLocation powerSource;
 	public static final ResourceLocation powerSourceDefault = new ResourceLocation("c:ender_pearls");
@@ -84,6 +93,26 @@ public final class Settings
 	}
 	public static TagKey<Item> powerSourceTag;
 
+	@ConfigSetting(descriptionKey = "storage_backend", description = "How portal data is stored. NBT works for most worlds. DATABASE keeps portals in an embedded H2 database that can be queried while the server is offline.", category = "common", needsWorldRestart = true, permissionLvl = 4)
+	public static PortalStorage.Backend storageBackend;
+	public static final PortalStorage.Backend storageBackendDefault = PortalStorage.Backend.NBT;
+
+	@ConfigSetting(descriptionKey = "prewarm_radius", description = "Players within this many blocks of a portal cause the chunks of its destination portals to be loaded in advance, so teleporting doesn't have to wait for them. Set to 0 to disable.", category = "common", permissionLvl = 4)
+	public static int prewarmRadius;
+	public static final int prewarmRadiusDefault = 0;
+	public static boolean prewarmRadiusValidator(int value)
+	{
+		return ((value >= 0) && (value <= 64));
+	}
+
+	@ConfigSetting(descriptionKey = "prewarm_max_chunks", description = "The maximum number of destination chunks that are kept loaded in advance at the same time.", category = "common", permissionLvl = 4)
+	public static int prewarmMaxChunks;
+	public static final int prewarmMaxChunksDefault = 64;
+	public static boolean prewarmMaxChunksValidator(int value)
+	{
+		return ((value >= 1) && (value <= 1024));
+	}
+
 	@ConfigSetting(descriptionKey = "particles_enabled", description = "If enabled, portals emit particles (visual effect).", category = "client", clientOnly = true)
 	public static boolean particlesEnabled;
 	public static final boolean particlesEnabledDefault = true;
@@ -1,10 +1,12 @@
 package net.zarathul.simpleportals;
 
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.client.itemgroup.FabricItemGroupBuilder;
 import net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking;
 import net.fabricmc.fabric.api.command.v2.ArgumentTypeRegistry;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerChunkEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerWorldEvents;
@@ -20,7 +22,6 @@ import net.minecraft.network.FriendlyByteBuf;
 import net.minecraft.network.chat.Component;
 import net.minecraft.resources.ResourceKey;
 import net.minecraft.resources.ResourceLocation;
-import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.world.InteractionResult;
 import net.minecraft.world.item.BlockItem;
@@ -38,21 +39,23 @@ import net.zarathul.simpleportals.commands.CommandPortals;
 import net.zarathul.simpleportals.commands.CommandTeleport;
 import net.zarathul.simpleportals.commands.ConfigCommandMode;
 import net.zarathul.simpleportals.commands.arguments.BlockArgument;
-import net.zarathul.simpleportals.common.PortalWorldSaveData;
-import net.zarathul.simpleportals.common.TeleportTask;
+import net.zarathul.simpleportals.common.PortalChunkPrewarmer;
+import net.zarathul.simpleportals.common.PortalTransfer;
+import net.zarathul.simpleportals.common.TeleportScheduler;
 import net.zarathul.simpleportals.common.Utils;
 import net.zarathul.simpleportals.configuration.Config;
 import net.zarathul.simpleportals.items.ItemPortalActivator;
 import net.zarathul.simpleportals.items.ItemPortalFrame;
 import net.zarathul.simpleportals.items.ItemPowerGauge;
+import net.zarathul.simpleportals.registration.Address;
 import net.zarathul.simpleportals.registration.Portal;
 import net.zarathul.simpleportals.registration.PortalRegistry;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
 
 public class SimplePortals implements ModInitializer
 {
@@ -85,13 +88,11 @@ public class SimplePortals implements ModInitializer
 	public static final BlockItem itemPortalFrame = new ItemPortalFrame();
 	public static final BlockItem itemPowerGauge = new ItemPowerGauge();
 
-	// world save data handler
-	public static PortalWorldSaveData portalSaveData;
-
 	// logger
 	public static final Logger log = LogManager.getLogger(MOD_ID);
 
-	public static LinkedBlockingQueue<TeleportTask> TELEPORT_QUEUE = new LinkedBlockingQueue<>();
+	// Queued player teleportations of the running server, null while no server is running.
+	public static TeleportScheduler teleportScheduler;
 
 	@Override
 	public void onInitialize()
@@ -149,48 +150,33 @@ public class SimplePortals implements ModInitializer
 
 		// Handle teleportation queue in server tick event.
 		ServerTickEvents.END_SERVER_TICK.register((server) -> {
-			TeleportTask task;
-			MinecraftServer mcServer;
+			if (teleportScheduler != null) teleportScheduler.tick();
+		});
 
-			while (true)
-			{
-				task = SimplePortals.TELEPORT_QUEUE.peek();
-				if (task == null) return;
+		// Load the chunks of destination portals while players approach a portal.
+		ServerTickEvents.END_SERVER_TICK.register(PortalChunkPrewarmer::tick);
 
-				mcServer = task.player.getServer();
+		// Load and unload portal registry data together with the dimensions.
+		ServerWorldEvents.LOAD.register((server, world) -> {
+			if (!world.isClientSide) PortalRegistry.getStorage().load(world);
+		});
 
-				if (mcServer == null)
-				{
-					// No point in keeping the task if there's no server. Should never happen but who knows.
-					TELEPORT_QUEUE.poll();
-				}
-				else if (mcServer != server)
-				{
-					// Wrong server. No idea if this even can happen but let's be sure.
-					return;
-				}
-				else if (mcServer.getTickCount() > (task.creationTickCount + Settings.playerTeleportationDelay))
-				{
-					// Task is due.
-					TELEPORT_QUEUE.poll();
-					Utils.teleportTo(task.player, task.dimension, task.pos, task.facing);
-				}
-				else
-				{
-					// Task was not due yet, so if there are others they won't be either.
-					return;
-				}
-			}
+		ServerWorldEvents.UNLOAD.register((server, world) -> {
+			if (!world.isClientSide) PortalRegistry.getStorage().unload(world);
 		});
 
-		// Load portal registry data on overworld load.
-		ServerWorldEvents.LOAD.register((server, world) -> {
-			if (!world.isClientSide && (world.dimension() == Level.OVERWORLD))
-			{
-				portalSaveData = PortalWorldSaveData.get(world);
-			}
+		// Start with an empty registry on every server start. This matters for single player,
+		// where multiple worlds can be opened in one session.
+		ServerLifecycleEvents.SERVER_STARTING.register((server) -> {
+			PortalRegistry.reset();
+			PortalRegistry.setStorage(Settings.storageBackend.create());
+			teleportScheduler = new TeleportScheduler(server);
 		});
 
+		// Keep track of loaded portal chunks.
+		ServerChunkEvents.CHUNK_LOAD.register((world, chunk) -> PortalRegistry.onChunkLoad(world, chunk.getPos()));
+		ServerChunkEvents.CHUNK_UNLOAD.register((world, chunk) -> PortalRegistry.onChunkUnload(world, chunk.getPos()));
+
 		// Cache the power source item tag on data pack reload and server start.
 		// The server start hook is necessary because when the config is initially loaded,
 		// the Tag list does not exist yet.
@@ -205,6 +191,20 @@ public class SimplePortals implements ModInitializer
 			Settings.powerSourceValidator(Settings.powerSource);
 		});
 
+		// Queued teleportations don't survive a server stop. Dropped while the levels still exist,
+		// so the tickets of the destination chunks can be removed.
+		ServerLifecycleEvents.SERVER_STOPPING.register((server) -> {
+			if (teleportScheduler != null) teleportScheduler.clear();
+			teleportScheduler = null;
+
+			// Imports register portals on the server thread and can't continue without it.
+			PortalTransfer.cancel();
+			PortalChunkPrewarmer.reset();
+		});
+
+		// Make sure the final save is complete.
+		ServerLifecycleEvents.SERVER_STOPPED.register((server) -> PortalRegistry.getStorage().close());
+
 		// Necessary for dismantling blocks with the portal activator on sneak right-click.
 		// Without this BlockPortalFrame.use() is never called when sneaking.
 		UseBlockCallback.EVENT.register((player, world, hand, hit) -> {
@@ -262,11 +262,24 @@ public class SimplePortals implements ModInitializer
 
 			List<Portal> portals = PortalRegistry.getAllPortals();
 
+			// Every address used by the portals is only sent once. Portals reference them by their index in the packet.
+			List<Address> addresses = new ArrayList<>();
+			Object2IntOpenHashMap<Address> addressIndices = new Object2IntOpenHashMap<>();
+
+			for (Portal portal : portals)
+			{
+				if (addressIndices.containsKey(portal.getAddress())) continue;
+
+				addressIndices.put(portal.getAddress(), addresses.size());
+				addresses.add(portal.getAddress());
+			}
+
 			FriendlyByteBuf sendBuffer = PacketByteBufs.create();
+			sendBuffer.writeCollection(addresses, (buffer, address) -> buffer.writeNbt(address.serializeNBT()));
 			sendBuffer.writeCollection(portals, (buffer, portal) -> {
 				buffer.writeResourceLocation(portal.getDimension().location());		// dimension
 				buffer.writeBlockPos(portal.getCorner1().getPos());					// location
-				buffer.writeNbt(portal.getAddress().serializeNBT());				// address
+				buffer.writeVarInt(addressIndices.getInt(portal.getAddress()));		// address
 				buffer.writeInt(PortalRegistry.getPower(portal));					// power
 			});
 
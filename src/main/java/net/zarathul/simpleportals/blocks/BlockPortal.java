@@ -98,15 +98,13 @@ public class BlockPortal extends Block
 			int cooldown = (entity instanceof ServerPlayer) ? Settings.playerTeleportationCooldown : entity.getDimensionChangingDelay();
 			if (entity.isOnPortalCooldown()) return;
 
-			List<Portal> portals = PortalRegistry.getPortalsAt(pos, entity.level.dimension());
-			
-			if (portals == null || portals.size() < 1) return;
+			Portal start = PortalRegistry.getPortalAt(pos, entity.level.dimension());
+
+			if (start == null) return;
 
 			MinecraftServer mcServer = entity.getServer();
 			if (mcServer == null) return;
 
-			Portal start = portals.get(0);
-
 			// Handle power source entering the portal
 			
 			if (entity instanceof ItemEntity && Settings.powerCost > 0 && Settings.powerCapacity > 0)
@@ -144,7 +142,11 @@ public class BlockPortal extends Block
 			// Check if portal has enough power for a port
 			if (!bypassPowerCost && PortalRegistry.getPower(start) < Settings.powerCost) return;
 			
-			portals = PortalRegistry.getPortalsWithAddress(start.getAddress());
+			// Portals in dimensions whose portal data is not loaded get loaded between ticks, not inside the
+			// entity tick. Entities that stay in the portal can be ported to them from the next tick on.
+			PortalRegistry.requestDimensionLoads(mcServer, start.getAddress());
+			
+			List<Portal> portals = PortalRegistry.getPortalsWithAddress(start.getAddress());
 			
 			if (portals == null || portals.size() < 2) return;
 			
@@ -202,21 +204,15 @@ public class BlockPortal extends Block
 						// and "moved to quickly" checks in 'ServerGamePacketListenerImpl.handleMovePlayer()'. No idea
 						// why end portals don't have these problems, considering that I use the same copy and pasted
 						// code minus the platform generation stuff.
-						try
-						{
-							SimplePortals.TELEPORT_QUEUE.put(new TeleportTask(
-									mcServer.getTickCount(),
-									(ServerPlayer)entity,
-									destinationPortal.getDimension(),
-									destinationPos,
-									entityFacing));
-						}
-						catch (InterruptedException ex)
-						{
-							SimplePortals.log.error("Failed to enqueue teleportation task for player '{}' to dimension '{}'.",
-													entity.getName(),
-													destinationPortal.getDimension());
-						}
+						TeleportTask task = new TeleportTask(
+								mcServer.getTickCount(),
+								(ServerPlayer)entity,
+								destinationPortal.getDimension(),
+								destinationPos,
+								entityFacing);
+
+						// The destination chunk loads while the player waits for the teleportation delay.
+						if (SimplePortals.teleportScheduler != null) SimplePortals.teleportScheduler.schedule(task);
 					}
 					else
 					{
@@ -239,11 +235,10 @@ public class BlockPortal extends Block
 		{
 			// Deactivate damaged portals.
 			
-			List<Portal> affectedPortals = PortalRegistry.getPortalsAt(pos, world.dimension());
+			Portal firstPortal = PortalRegistry.getPortalAt(pos, world.dimension());
 			
-			if (affectedPortals == null || affectedPortals.size() < 1) return;
+			if (firstPortal == null) return;
 			
-			Portal firstPortal = affectedPortals.get(0);
 			ServerLevel serverWorld = (ServerLevel)world;
 			
 			if (firstPortal.isDamaged(serverWorld))
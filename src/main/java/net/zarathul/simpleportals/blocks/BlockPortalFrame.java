@@ -18,8 +18,6 @@ import net.zarathul.simpleportals.SimplePortals;
 import net.zarathul.simpleportals.registration.Portal;
 import net.zarathul.simpleportals.registration.PortalRegistry;
 
-import java.util.List;
-
 /**
  * Represents the frame of the portal multi-block.
  */
@@ -64,11 +62,10 @@ public class BlockPortalFrame extends Block
 		{
 			// Deactivate damaged portals.
 
-			List<Portal> affectedPortals = PortalRegistry.getPortalsAt(pos, world.dimension());
+			Portal firstPortal = PortalRegistry.getPortalAt(pos, world.dimension());
 
-			if (affectedPortals == null || affectedPortals.size() < 1) return;
+			if (firstPortal == null) return;
 
-			Portal firstPortal = affectedPortals.get(0);
 			ServerLevel serverWorld = (ServerLevel)world;
 
 			if (firstPortal.isDamaged(serverWorld))
@@ -91,11 +88,10 @@ public class BlockPortalFrame extends Block
 		{
 			// Deactivate all portals that share this frame block if an address block was removed or changed.
 
-			List<Portal> affectedPortals = PortalRegistry.getPortalsAt(pos, world.dimension());
+			Portal firstPortal = PortalRegistry.getPortalAt(pos, world.dimension());
 
-			if (affectedPortals == null || affectedPortals.size() < 1) return;
+			if (firstPortal == null) return;
 
-			Portal firstPortal = affectedPortals.get(0);
 			ServerLevel serverWorld = (ServerLevel)world;
 
 			if (firstPortal.hasAddressChanged(serverWorld))
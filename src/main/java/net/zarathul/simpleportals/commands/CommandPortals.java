@@ -2,6 +2,7 @@ package net.zarathul.simpleportals.commands;
 
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.arguments.IntegerArgumentType;
+import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.brigadier.exceptions.CommandSyntaxException;
 import net.minecraft.commands.CommandRuntimeException;
 import net.minecraft.commands.CommandSourceStack;
@@ -17,13 +18,19 @@ import net.minecraft.server.level.ServerLevel;
 import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.world.level.Level;
 import net.zarathul.simpleportals.Settings;
+import net.zarathul.simpleportals.SimplePortals;
 import net.zarathul.simpleportals.commands.arguments.BlockArgument;
+import net.zarathul.simpleportals.common.PortalTransfer;
+import net.zarathul.simpleportals.common.TeleportScheduler;
 import net.zarathul.simpleportals.mixin.EntityAccessor;
 import net.zarathul.simpleportals.registration.Address;
 import net.zarathul.simpleportals.registration.Portal;
 import net.zarathul.simpleportals.registration.PortalRegistry;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 public class CommandPortals
@@ -42,6 +49,8 @@ public class CommandPortals
 		Items
 	}
 
+	private static final String DEFAULT_TRANSFER_FILE = "portals";
+
 	public static void register(CommandDispatcher<CommandSourceStack> dispatcher)
 	{
 		// As of 1.18.2 because the config and list subcommands are client-side only, the whole command tree has to be mirrored in ClientInit.
@@ -183,6 +192,26 @@ public class CommandPortals
 					.executes(context -> cooldown(context.getSource(), EntityArgument.getPlayer(context, "player")))
 				)
 			)
+			.then(
+				Commands.literal("teleports")		// sportals teleports
+				.executes(context -> teleports(context.getSource()))
+			)
+			.then(
+				Commands.literal("export")		// sportals export [file]
+				.executes(context -> export(context.getSource(), DEFAULT_TRANSFER_FILE))
+				.then(
+					Commands.argument("file", StringArgumentType.word())
+					.executes(context -> export(context.getSource(), StringArgumentType.getString(context, "file")))
+				)
+			)
+			.then(
+				Commands.literal("import")		// sportals import [file]
+				.executes(context -> importPortals(context.getSource(), DEFAULT_TRANSFER_FILE))
+				.then(
+					Commands.argument("file", StringArgumentType.word())
+					.executes(context -> importPortals(context.getSource(), StringArgumentType.getString(context, "file")))
+				)
+			)
 			.then(
 				Commands.literal("clear")
 				.executes(context -> {
@@ -205,7 +234,7 @@ public class CommandPortals
 		{
 			case Address:
 				// sportals deactivate <addressBlockId> <addressBlockId> <addressBlockId> <addressBlockId> [dimension]
-				portals = PortalRegistry.getPortalsWithAddress(address);
+				portals = PortalRegistry.getPortalsWithAddress(source.getServer(), address);
 
 				if (portals == null || portals.size() == 0)
 				{
@@ -261,14 +290,20 @@ public class CommandPortals
 		BlockPos portalPos;
 		ServerLevel dimensionServer;
 
-		for (Portal portal : portals)
+		// Deactivate the portals per dimension in one go, so shared power gauges and the
+		// portal data only get updated once.
+		Map<ResourceKey<Level>, List<Portal>> portalsByDimension = portals.stream().collect(Collectors.groupingBy(Portal::getDimension));
+
+		for (Map.Entry<ResourceKey<Level>, List<Portal>> entry : portalsByDimension.entrySet())
 		{
-			portalPos = portal.getCorner1().getPos();
-			dimensionServer = source.getServer().getLevel(portal.getDimension());
-			if (dimensionServer == null) throw new CommandRuntimeException(Component.translatable("commands.errors.missing_dimension", portal.getDimension().location()));
+			dimensionServer = source.getServer().getLevel(entry.getKey());
+			if (dimensionServer == null) throw new CommandRuntimeException(Component.translatable("commands.errors.missing_dimension", entry.getKey().location()));
 
-			PortalRegistry.deactivatePortal(dimensionServer, portalPos);
-			SendTranslatedMessage(source, "commands.sportals.deactivate.success", portalPos.getX(), portalPos.getY(), portalPos.getZ(), portal.getDimension().location());
+			for (Portal portal : PortalRegistry.deactivatePortals(dimensionServer, entry.getValue()))
+			{
+				portalPos = portal.getCorner1().getPos();
+				SendTranslatedMessage(source, "commands.sportals.deactivate.success", portalPos.getX(), portalPos.getY(), portalPos.getZ(), portal.getDimension().location());
+			}
 		}
 
 		return 1;
@@ -346,6 +381,40 @@ public class CommandPortals
 		return 1;
 	}
 
+	private static int teleports(CommandSourceStack source)
+	{
+		// sportals teleports
+		TeleportScheduler scheduler = SimplePortals.teleportScheduler;
+		if (scheduler == null) return 0;
+
+		SendTranslatedMessage(source, "commands.sportals.teleports.success", scheduler.getQueueDepth(), scheduler.getExecutedCount(),
+			scheduler.getAverageLateness(), scheduler.getMaxLateness());
+
+		return 1;
+	}
+
+	private static int export(CommandSourceStack source, String fileName)
+	{
+		// sportals export [file]
+		Path file = PortalTransfer.getFile(source.getServer(), fileName);
+		if (!PortalTransfer.exportPortals(source.getServer(), file, message -> source.sendSuccess(message, false)))
+			throw new CommandRuntimeException(Component.translatable("commands.errors.transfer_running"));
+
+		return 1;
+	}
+
+	private static int importPortals(CommandSourceStack source, String fileName)
+	{
+		// sportals import [file]
+		Path file = PortalTransfer.getFile(source.getServer(), fileName);
+		if (!Files.isRegularFile(file)) throw new CommandRuntimeException(Component.translatable("commands.errors.transfer_file_not_found", file));
+
+		if (!PortalTransfer.importPortals(source.getServer(), file, message -> source.sendSuccess(message, false)))
+			throw new CommandRuntimeException(Component.translatable("commands.errors.transfer_running"));
+
+		return 1;
+	}
+
 	private static int clear(CommandSourceStack source)
 	{
 		// sportals clear confirmed
@@ -0,0 +1,550 @@
+package net.zarathul.simpleportals.common;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongLongPair;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.core.Direction.Axis;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.TagParser;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.saveddata.SavedData;
+import net.minecraft.world.level.storage.LevelResource;
+import net.zarathul.simpleportals.SimplePortals;
+import net.zarathul.simpleportals.registration.Address;
+import net.zarathul.simpleportals.registration.AddressPool;
+import net.zarathul.simpleportals.registration.Corner;
+import net.zarathul.simpleportals.registration.Portal;
+import net.zarathul.simpleportals.registration.PortalRegistry;
+import net.zarathul.simpleportals.registration.PortalSegmentSnapshot;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * {@link PortalStorage} that keeps all portals in an embedded H2 database file in the data
+ * folder of the world. Every portal is one row, identified by its dimension and its first and
+ * last corner. A save only writes the rows of changed portals, power changes only update the
+ * power column. The writes of one save are batched into a single transaction and executed on
+ * the save executor. If a transaction fails, its changes are queued again for the next save.<br>
+ * The database can be opened with any H2 client while the server is not running.<br>
+ * The first time a dimension is loaded with this backend, portals saved by the
+ * {@link NbtPortalStorage} are taken over.
+ */
+public class JdbcPortalStorage implements PortalStorage
+{
+	private static final String DATABASE_NAME = SimplePortals.MOD_ID;
+	private static final String HOOK_NAME = SimplePortals.MOD_ID + "_database";
+
+	private static final String[] SCHEMA = {
+		"CREATE TABLE IF NOT EXISTS portals (" +
+			"dimension VARCHAR(255) NOT NULL, corner1 BIGINT NOT NULL, corner4 BIGINT NOT NULL, " +
+			"corner2 BIGINT NOT NULL, corner3 BIGINT NOT NULL, axis VARCHAR(1) NOT NULL, facings VARCHAR(64) NOT NULL, " +
+			"address VARCHAR(4096) NOT NULL, address_name VARCHAR(4096) NOT NULL, power INT NOT NULL, " +
+			"PRIMARY KEY (dimension, corner1, corner4))",
+		"CREATE TABLE IF NOT EXISTS portal_gauges (" +
+			"dimension VARCHAR(255) NOT NULL, corner1 BIGINT NOT NULL, corner4 BIGINT NOT NULL, pos BIGINT NOT NULL)",
+		"CREATE INDEX IF NOT EXISTS portal_gauges_portal ON portal_gauges (dimension, corner1, corner4)",
+		"CREATE TABLE IF NOT EXISTS converted_dimensions (dimension VARCHAR(255) PRIMARY KEY)"
+	};
+
+	private static final String UPSERT_PORTAL = "MERGE INTO portals (dimension, corner1, corner4, corner2, corner3, axis, facings, address, address_name, power) KEY (dimension, corner1, corner4) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	private static final String UPDATE_POWER = "UPDATE portals SET power = ? WHERE dimension = ? AND corner1 = ? AND corner4 = ?";
+	private static final String DELETE_PORTAL = "DELETE FROM portals WHERE dimension = ? AND corner1 = ? AND corner4 = ?";
+	private static final String DELETE_GAUGES = "DELETE FROM portal_gauges WHERE dimension = ? AND corner1 = ? AND corner4 = ?";
+	private static final String INSERT_GAUGE = "INSERT INTO portal_gauges (dimension, corner1, corner4, pos) VALUES (?, ?, ?, ?)";
+	private static final String SELECT_PORTALS = "SELECT corner1, corner2, corner3, corner4, axis, facings, address, power FROM portals WHERE dimension = ?";
+	private static final String SELECT_GAUGES = "SELECT corner1, corner4, pos FROM portal_gauges WHERE dimension = ?";
+	private static final String IS_CONVERTED = "SELECT 1 FROM converted_dimensions WHERE dimension = ?";
+	private static final String SET_CONVERTED = "MERGE INTO converted_dimensions (dimension) KEY (dimension) VALUES (?)";
+
+	private final Map<ResourceKey<Level>, DimensionState> loadedDimensions = new HashMap<>();
+	private Connection connection;
+	private MinecraftServer server;
+
+	/**
+	 * Changes of the portals of one dimension since the last save.
+	 */
+	private static class DimensionState
+	{
+		final IntOpenHashSet dirtyPortals = new IntOpenHashSet();
+		final IntOpenHashSet dirtyPower = new IntOpenHashSet();
+		// The portals as they are stored in the database, needed to find the rows of removed portals.
+		final Int2ObjectOpenHashMap<Portal> storedPortals = new Int2ObjectOpenHashMap<>();
+		// Rows the registry refused to load, they get deleted with the next save.
+		final List<Portal> droppedPortals = new ArrayList<>();
+		// Set while the portals taken over from the default backend are not written yet.
+		boolean converting;
+	}
+
+	/**
+	 * Saved data that never gets written. It only exists to get notified when the
+	 * dimension is saved.
+	 */
+	private static class SaveHook extends SavedData
+	{
+		private Runnable action;
+
+		@Override
+		public CompoundTag save(CompoundTag tag)
+		{
+			return tag;
+		}
+
+		@Override
+		public void save(File file)
+		{
+			if (action != null) action.run();
+		}
+	}
+
+	@Override
+	public void load(ServerLevel world)
+	{
+		if (world == null || loadedDimensions.containsKey(world.dimension())) return;
+
+		ResourceKey<Level> dimension = world.dimension();
+		String dimensionName = dimension.location().toString();
+		DimensionState state = new DimensionState();
+		boolean isNew;
+
+		try
+		{
+			Connection database = getConnection(world);
+
+			synchronized (database)
+			{
+				try (PreparedStatement statement = database.prepareStatement(IS_CONVERTED))
+				{
+					statement.setString(1, dimensionName);
+
+					try (ResultSet result = statement.executeQuery())
+					{
+						isNew = !result.next();
+					}
+				}
+
+				if (!isNew) loadPortals(database, dimension, state);
+			}
+		}
+		catch (SQLException ex)
+		{
+			SimplePortals.log.error("Could not load the portals of {} from the database.", dimensionName, ex);
+			return;
+		}
+
+		if (isNew)
+		{
+			// Portals saved by the default backend get written to the database with the next save.
+			PortalWorldSaveData.get(world);
+			PortalRegistry.getPortalsInDimension(dimension).forEach(portal -> state.dirtyPortals.add(PortalRegistry.getHandle(portal)));
+			state.converting = true;
+		}
+
+		SaveHook hook = world.getDataStorage().computeIfAbsent(tag -> new SaveHook(), SaveHook::new, HOOK_NAME);
+		hook.action = () -> flush(dimension);
+
+		loadedDimensions.put(dimension, state);
+
+		// Repaired portals get written back, so they don't have to be repaired on every load.
+		if (PortalRegistry.onDimensionLoaded(dimension)) state.dirtyPortals.addAll(state.storedPortals.keySet());
+	}
+
+	@Override
+	public void unload(ServerLevel world)
+	{
+		if (world == null || !loadedDimensions.containsKey(world.dimension())) return;
+
+		flush(world.dimension());
+		loadedDimensions.remove(world.dimension());
+
+		PortalRegistry.unloadDimension(world.dimension());
+	}
+
+	@Override
+	public void setPortalDirty(ResourceKey<Level> dimension, int handle)
+	{
+		DimensionState state = loadedDimensions.get(dimension);
+		if (state != null) state.dirtyPortals.add(handle);
+	}
+
+	@Override
+	public void setPowerDirty(ResourceKey<Level> dimension, int handle)
+	{
+		DimensionState state = loadedDimensions.get(dimension);
+		if (state != null) state.dirtyPower.add(handle);
+	}
+
+	@Override
+	public void setAllPortalsDirty()
+	{
+		for (DimensionState state : loadedDimensions.values())
+		{
+			state.dirtyPortals.addAll(state.storedPortals.keySet());
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		loadedDimensions.keySet().forEach(this::flush);
+		loadedDimensions.clear();
+		PortalWorldSaveData.awaitPendingSaves();
+		PortalWorldSaveData.reset();
+
+		if (connection == null) return;
+
+		try
+		{
+			connection.close();
+		}
+		catch (SQLException ex)
+		{
+			SimplePortals.log.error("Could not close the portal database.", ex);
+		}
+
+		connection = null;
+		server = null;
+	}
+
+	private Connection getConnection(ServerLevel world) throws SQLException
+	{
+		if (connection != null) return connection;
+
+		Path file = world.getServer().getWorldPath(LevelResource.ROOT).resolve("data").resolve(DATABASE_NAME).toAbsolutePath();
+		// The driver is created directly, JDBC service discovery does not see jars nested in the mod jar.
+		connection = new org.h2.Driver().connect("jdbc:h2:file:" + file, new Properties());
+		if (connection == null) throw new SQLException("The H2 driver did not accept the database URL.");
+
+		server = world.getServer();
+
+		try (Statement statement = connection.createStatement())
+		{
+			for (String sql : SCHEMA) statement.execute(sql);
+		}
+
+		return connection;
+	}
+
+	/**
+	 * Reads all portals of a dimension from the database into the registry.
+	 */
+	private static void loadPortals(Connection connection, ResourceKey<Level> dimension, DimensionState state) throws SQLException
+	{
+		String dimensionName = dimension.location().toString();
+		ListMultimap<LongLongPair, BlockPos> gauges = ArrayListMultimap.create();
+
+		try (PreparedStatement statement = connection.prepareStatement(SELECT_GAUGES))
+		{
+			statement.setString(1, dimensionName);
+
+			try (ResultSet result = statement.executeQuery())
+			{
+				while (result.next())
+				{
+					gauges.put(LongLongPair.of(result.getLong(1), result.getLong(2)), BlockPos.of(result.getLong(3)));
+				}
+			}
+		}
+
+		try (PreparedStatement statement = connection.prepareStatement(SELECT_PORTALS))
+		{
+			statement.setString(1, dimensionName);
+
+			try (ResultSet result = statement.executeQuery())
+			{
+				while (result.next())
+				{
+					Portal portal = readPortal(dimension, result);
+					if (portal == null) continue;
+
+					LongLongPair key = LongLongPair.of(result.getLong("corner1"), result.getLong("corner4"));
+					int handle = PortalRegistry.loadPortal(portal, -1, result.getInt("power"), gauges.get(key));
+
+					if (handle == -1)
+					{
+						state.droppedPortals.add(portal);
+					}
+					else
+					{
+						state.storedPortals.put(handle, portal);
+					}
+				}
+			}
+		}
+	}
+
+	private static Portal readPortal(ResourceKey<Level> dimension, ResultSet result) throws SQLException
+	{
+		Address address = new Address();
+
+		try
+		{
+			address.deserializeNBT(TagParser.parseTag(result.getString("address")));
+		}
+		catch (CommandSyntaxException ex)
+		{
+			SimplePortals.log.error("Skipped portal with invalid address '{}' in the database.", result.getString("address"));
+			return null;
+		}
+
+		String[] facings = result.getString("facings").split(",");
+
+		if (facings.length != 8)
+		{
+			SimplePortals.log.error("Skipped portal with invalid corner facings '{}' in the database.", result.getString("facings"));
+			return null;
+		}
+
+		return new Portal(
+			dimension,
+			AddressPool.intern(address),
+			Axis.byName(result.getString("axis")),
+			new Corner(BlockPos.of(result.getLong("corner1")), Direction.byName(facings[0]), Direction.byName(facings[1])),
+			new Corner(BlockPos.of(result.getLong("corner2")), Direction.byName(facings[2]), Direction.byName(facings[3])),
+			new Corner(BlockPos.of(result.getLong("corner3")), Direction.byName(facings[4]), Direction.byName(facings[5])),
+			new Corner(BlockPos.of(result.getLong("corner4")), Direction.byName(facings[6]), Direction.byName(facings[7])));
+	}
+
+	/**
+	 * Takes a snapshot of all changed portals of a dimension and queues a transaction
+	 * that writes them to the database.
+	 */
+	private void flush(ResourceKey<Level> dimension)
+	{
+		DimensionState state = loadedDimensions.get(dimension);
+		if (state == null || connection == null || (!state.converting && state.dirtyPortals.isEmpty() && state.dirtyPower.isEmpty() && state.droppedPortals.isEmpty())) return;
+
+		IntOpenHashSet changed = new IntOpenHashSet(state.dirtyPortals);
+		changed.addAll(state.dirtyPower);
+
+		PortalSegmentSnapshot snapshot = PortalRegistry.snapshotPortals(dimension, changed);
+		List<Portal> deleted = new ArrayList<>(state.droppedPortals);
+		List<Integer> upserted = new ArrayList<>();
+		List<Integer> powerChanged = new ArrayList<>();
+
+		for (int i = 0; i < snapshot.size(); i++)
+		{
+			int handle = snapshot.getHandle(i);
+			Portal stored = state.storedPortals.put(handle, snapshot.getPortal(i));
+			changed.remove(handle);
+
+			if (stored != null && stored != snapshot.getPortal(i)) deleted.add(stored);
+
+			if (stored == snapshot.getPortal(i) && !state.dirtyPortals.contains(handle))
+			{
+				powerChanged.add(i);
+			}
+			else
+			{
+				upserted.add(i);
+			}
+		}
+
+		// Everything left over is no longer registered.
+		for (IntIterator iterator = changed.iterator(); iterator.hasNext();)
+		{
+			Portal stored = state.storedPortals.remove(iterator.nextInt());
+			if (stored != null) deleted.add(stored);
+		}
+
+		state.dirtyPortals.clear();
+		state.dirtyPower.clear();
+		state.droppedPortals.clear();
+
+		String dimensionName = dimension.location().toString();
+		boolean converted = state.converting;
+		state.converting = false;
+
+		PortalWorldSaveData.submitSave(() -> {
+			if (write(dimensionName, snapshot, deleted, upserted, powerChanged, converted)) return;
+
+			MinecraftServer server = this.server;
+			if (server != null && server.isRunning()) server.execute(() -> requeue(dimension, snapshot, deleted, upserted, powerChanged, converted));
+		});
+	}
+
+	/**
+	 * Marks the changes of a failed transaction for saving again. The stored portals were already
+	 * updated when the transaction was queued, so all written portals get rewritten completely.
+	 * Deletes of rows whose key now belongs to a registered portal are dropped, they would
+	 * remove that portal if it has been written in the meantime. Called on the server thread.
+	 */
+	private void requeue(ResourceKey<Level> dimension, PortalSegmentSnapshot snapshot, List<Portal> deleted, List<Integer> upserted, List<Integer> powerChanged, boolean converted)
+	{
+		DimensionState state = loadedDimensions.get(dimension);
+
+		if (state == null)
+		{
+			SimplePortals.log.error("Portal data of {} could not be saved to the database and the dimension is no longer loaded.", dimension.location());
+			return;
+		}
+
+		for (Portal portal : deleted)
+		{
+			if (!isKeyRegistered(dimension, portal)) state.droppedPortals.add(portal);
+		}
+
+		for (int i : upserted) state.dirtyPortals.add(snapshot.getHandle(i));
+		for (int i : powerChanged) state.dirtyPortals.add(snapshot.getHandle(i));
+		if (converted) state.converting = true;
+	}
+
+	/**
+	 * Writes changed portals to the database in a single transaction. Dimensions that were taken
+	 * over from the default backend are only marked as converted in the same transaction, so an
+	 * interrupted conversion starts over.
+	 *
+	 * @return
+	 * <code>false</code> if the transaction was rolled back, otherwise <code>true</code>.
+	 */
+	private boolean write(String dimension, PortalSegmentSnapshot snapshot, List<Portal> deleted, List<Integer> upserted, List<Integer> powerChanged, boolean converted)
+	{
+		Connection connection = this.connection;
+		if (connection == null) return false;
+
+		synchronized (connection)
+		{
+			try
+			{
+				connection.setAutoCommit(false);
+
+				try (PreparedStatement deletePortal = connection.prepareStatement(DELETE_PORTAL);
+					 PreparedStatement deleteGauges = connection.prepareStatement(DELETE_GAUGES);
+					 PreparedStatement upsertPortal = connection.prepareStatement(UPSERT_PORTAL);
+					 PreparedStatement insertGauge = connection.prepareStatement(INSERT_GAUGE);
+					 PreparedStatement updatePower = connection.prepareStatement(UPDATE_POWER);
+					 PreparedStatement setConverted = connection.prepareStatement(SET_CONVERTED))
+				{
+					// Deleted first, a new portal may have taken the place of a removed one.
+					for (Portal portal : deleted)
+					{
+						setKey(deletePortal, 1, dimension, portal);
+						deletePortal.addBatch();
+						setKey(deleteGauges, 1, dimension, portal);
+						deleteGauges.addBatch();
+					}
+
+					for (int i : upserted)
+					{
+						Portal portal = snapshot.getPortal(i);
+
+						setKey(upsertPortal, 1, dimension, portal);
+						upsertPortal.setLong(4, portal.getCorner2().getPos().asLong());
+						upsertPortal.setLong(5, portal.getCorner3().getPos().asLong());
+						upsertPortal.setString(6, portal.getAxis().getName());
+						upsertPortal.setString(7, getFacings(portal));
+						upsertPortal.setString(8, portal.getAddress().serializeNBT().getAsString());
+						upsertPortal.setString(9, portal.getAddress().toString());
+						upsertPortal.setInt(10, snapshot.getPower(i));
+						upsertPortal.addBatch();
+
+						setKey(deleteGauges, 1, dimension, portal);
+						deleteGauges.addBatch();
+
+						for (BlockPos pos : snapshot.getGauges(i))
+						{
+							setKey(insertGauge, 1, dimension, portal);
+							insertGauge.setLong(4, pos.asLong());
+							insertGauge.addBatch();
+						}
+					}
+
+					for (int i : powerChanged)
+					{
+						updatePower.setInt(1, snapshot.getPower(i));
+						setKey(updatePower, 2, dimension, snapshot.getPortal(i));
+						updatePower.addBatch();
+					}
+
+					deletePortal.executeBatch();
+					deleteGauges.executeBatch();
+					upsertPortal.executeBatch();
+					insertGauge.executeBatch();
+					updatePower.executeBatch();
+
+					if (converted)
+					{
+						setConverted.setString(1, dimension);
+						setConverted.execute();
+					}
+				}
+
+				connection.commit();
+
+				return true;
+			}
+			catch (SQLException ex)
+			{
+				SimplePortals.log.error("Could not save portal data to the database. The changes are retried with the next save.", ex);
+
+				try
+				{
+					connection.rollback();
+				}
+				catch (SQLException ignored) {}
+
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Sets the dimension and the corners that identify the row of a portal, starting
+	 * at the specified parameter index.
+	 */
+	private static void setKey(PreparedStatement statement, int index, String dimension, Portal portal) throws SQLException
+	{
+		statement.setString(index, dimension);
+		statement.setLong(index + 1, portal.getCorner1().getPos().asLong());
+		statement.setLong(index + 2, portal.getCorner4().getPos().asLong());
+	}
+
+	/**
+	 * Determines if a registered portal has the same database key (dimension, corner 1 and 4)
+	 * as the specified portal.
+	 */
+	private static boolean isKeyRegistered(ResourceKey<Level> dimension, Portal portal)
+	{
+		BlockPos corner4 = portal.getCorner4().getPos();
+
+		for (Portal registered : PortalRegistry.getPortalsAt(portal.getCorner1().getPos(), dimension))
+		{
+			if (registered.getCorner1().getPos().equals(portal.getCorner1().getPos()) && registered.getCorner4().getPos().equals(corner4)) return true;
+		}
+
+		return false;
+	}
+
+	private static String getFacings(Portal portal)
+	{
+		Corner[] corners = { portal.getCorner1(), portal.getCorner2(), portal.getCorner3(), portal.getCorner4() };
+		StringBuilder builder = new StringBuilder();
+
+		for (Corner corner : corners)
+		{
+			if (builder.length() > 0) builder.append(',');
+			builder.append(corner.getFacingA().getName()).append(',').append(corner.getFacingB().getName());
+		}
+
+		return builder.toString();
+	}
+}
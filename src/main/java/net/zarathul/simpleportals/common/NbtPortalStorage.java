@@ -0,0 +1,54 @@
+package net.zarathul.simpleportals.common;
+
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.Level;
+import net.zarathul.simpleportals.registration.PortalRegistry;
+
+/**
+ * The default {@link PortalStorage}. Saves the portals as part of the vanilla saved data
+ * (see {@link PortalWorldSaveData}).
+ */
+public class NbtPortalStorage implements PortalStorage
+{
+	@Override
+	public void load(ServerLevel world)
+	{
+		PortalWorldSaveData.get(world);
+	}
+
+	@Override
+	public void unload(ServerLevel world)
+	{
+		PortalWorldSaveData.unload(world);
+	}
+
+	@Override
+	public void setPortalDirty(ResourceKey<Level> dimension, int handle)
+	{
+		PortalWorldSaveData.setSegmentDirty(dimension, handle / PortalRegistry.SAVE_SEGMENT_SIZE);
+		// Journal entries of a portal that was previously at the same position must not
+		// be applied to a new portal, so the new power gets journaled as well.
+		PortalWorldSaveData.setPowerDirty(dimension, handle);
+	}
+
+	@Override
+	public void setPowerDirty(ResourceKey<Level> dimension, int handle)
+	{
+		PortalWorldSaveData.setPowerDirty(dimension, handle);
+	}
+
+	@Override
+	public void setAllPortalsDirty()
+	{
+		PortalWorldSaveData.setAllSegmentsDirty();
+	}
+
+	@Override
+	public void close()
+	{
+		// Segments are written in the background, so make sure the final save is complete.
+		PortalWorldSaveData.awaitPendingSaves();
+		PortalWorldSaveData.reset();
+	}
+}
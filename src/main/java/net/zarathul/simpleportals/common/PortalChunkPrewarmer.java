@@ -0,0 +1,148 @@
+package net.zarathul.simpleportals.common;
+
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.server.level.TicketType;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.levelgen.structure.BoundingBox;
+import net.zarathul.simpleportals.Settings;
+import net.zarathul.simpleportals.SimplePortals;
+import net.zarathul.simpleportals.registration.Address;
+import net.zarathul.simpleportals.registration.Portal;
+import net.zarathul.simpleportals.registration.PortalRegistry;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loads the chunks of destination portals while players approach a portal, so the teleport
+ * doesn't have to load them synchronously.<br>
+ * Every {@link #SCAN_INTERVAL} ticks, the portals within {@link Settings#prewarmRadius} blocks
+ * of every player are looked up. The chunks of all other portals with the same address get a
+ * ticket that keeps them loaded, but not ticking. Tickets expire on their own if they are not
+ * renewed by the next scans, so nothing has to be cleaned up when players move away.<br>
+ * Live tickets are tracked until they expire. Renewing a ticket is always possible, new ones
+ * are only placed while fewer than {@link Settings#prewarmMaxChunks} are live. Only destinations
+ * in loaded dimensions are considered, pre-warming never loads the portals of a dimension.
+ */
+public final class PortalChunkPrewarmer
+{
+	private static final int SCAN_INTERVAL = 20;
+	private static final int TICKET_LIFESPAN = SCAN_INTERVAL * 5;
+	private static final TicketType<ChunkPos> PREWARM_TICKET = TicketType.create(SimplePortals.MOD_ID + "_prewarm", Comparator.comparingLong(ChunkPos::toLong), TICKET_LIFESPAN);
+
+	// The tick every live ticket expires at, by dimension and chunk.
+	private static final Map<ResourceKey<Level>, Long2IntOpenHashMap> liveTickets = new HashMap<>();
+	private static int liveTicketCount;
+
+	/**
+	 * Places or renews the tickets of all destination portals near players. Called every
+	 * server tick, does nothing if pre-warming is disabled or no scan is due.
+	 *
+	 * @param server
+	 * The {@link MinecraftServer}.
+	 */
+	public static void tick(MinecraftServer server)
+	{
+		if (Settings.prewarmRadius <= 0 || server.getTickCount() % SCAN_INTERVAL != 0) return;
+
+		removeExpiredTickets(server.getTickCount());
+
+		Set<Address> warmedAddresses = new HashSet<>();
+
+		for (ServerPlayer player : server.getPlayerList().getPlayers())
+		{
+			if (player.isSpectator()) continue;
+
+			List<Portal> nearbyPortals = PortalRegistry.getPortalsInRadius(player.blockPosition(), Settings.prewarmRadius, player.getLevel().dimension());
+
+			for (Portal portal : nearbyPortals)
+			{
+				// Portals without enough power can't teleport anyone.
+				if (Settings.powerCost > 0 && PortalRegistry.getPower(portal) < Settings.powerCost) continue;
+
+				// All portals of an address are handled at once, so every address only needs to be visited once per scan.
+				if (!warmedAddresses.add(portal.getAddress())) continue;
+
+				// Only portals of loaded dimensions, loading a dimension is far more expensive than the chunk load this saves.
+				for (Portal destination : PortalRegistry.getPortalsWithAddress(portal.getAddress()))
+				{
+					if (destination.equals(portal)) continue;
+
+					ServerLevel level = server.getLevel(destination.getDimension());
+					if (level != null) addTickets(level, destination, server.getTickCount());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forgets all live tickets. Called when the server stops, the tickets go away with the levels.
+	 */
+	public static void reset()
+	{
+		liveTickets.clear();
+		liveTicketCount = 0;
+	}
+
+	/**
+	 * Places or renews tickets on all chunks the spawn positions of the specified portal can be
+	 * in. Spawn positions are at most one block away from the portals frame. New tickets are
+	 * only placed while the limit of live tickets isn't reached.
+	 */
+	private static void addTickets(ServerLevel level, Portal portal, int now)
+	{
+		BoundingBox bounds = portal.getBounds();
+		Long2IntOpenHashMap tickets = liveTickets.computeIfAbsent(level.dimension(), dimension -> new Long2IntOpenHashMap());
+		// One tick more than the ticket itself lives, so a ticket is never forgotten while it is still there.
+		int expiry = now + TICKET_LIFESPAN + 1;
+
+		for (int chunkX = (bounds.minX() - 1) >> 4; chunkX <= (bounds.maxX() + 1) >> 4; chunkX++)
+		{
+			for (int chunkZ = (bounds.minZ() - 1) >> 4; chunkZ <= (bounds.maxZ() + 1) >> 4; chunkZ++)
+			{
+				long chunk = ChunkPos.asLong(chunkX, chunkZ);
+				boolean isLive = tickets.containsKey(chunk);
+
+				if (isLive && tickets.get(chunk) == expiry) continue;	// already renewed by this scan
+				if (!isLive && liveTicketCount >= Settings.prewarmMaxChunks) continue;
+
+				ChunkPos chunkPos = new ChunkPos(chunkX, chunkZ);
+				// Distance 0 is the weakest ticket that still fully loads the chunk, it doesn't make the chunk tick.
+				// Adding a ticket that already exists resets its lifespan.
+				level.getChunkSource().addRegionTicket(PREWARM_TICKET, chunkPos, 0, chunkPos);
+				tickets.put(chunk, expiry);
+				if (!isLive) liveTicketCount++;
+			}
+		}
+	}
+
+	private static void removeExpiredTickets(int now)
+	{
+		for (Iterator<Long2IntOpenHashMap> dimensions = liveTickets.values().iterator(); dimensions.hasNext();)
+		{
+			Long2IntOpenHashMap tickets = dimensions.next();
+
+			for (ObjectIterator<Long2IntMap.Entry> iterator = tickets.long2IntEntrySet().fastIterator(); iterator.hasNext();)
+			{
+				if (iterator.next().getIntValue() > now) continue;
+
+				iterator.remove();
+				liveTicketCount--;
+			}
+
+			if (tickets.isEmpty()) dimensions.remove();
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package net.zarathul.simpleportals.common;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.core.BlockPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+import net.zarathul.simpleportals.SimplePortals;
+import net.zarathul.simpleportals.registration.PortalRegistry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Append-only journal for the power of the portals in one dimension.<br>
+ * Power changes far more often than anything else, so instead of rewriting the save segment
+ * of a portal, every save only appends the new power of the changed portals to the journal.
+ * The file starts with a header holding the format version. Every record consists of the
+ * packed positions of the portals first and fourth corner and its power. Both corners are
+ * needed, because portals that share a frame block can share their first corner as well.
+ * The journal is replayed after the segments are loaded. Once it gets too long, it is
+ * folded into the segments (see {@link PortalWorldSaveData}) and deleted.<br>
+ * If an append fails, the file may end in an incomplete record. Nothing gets appended to it
+ * anymore, the segments of the affected portals are marked as dirty and the journal is folded
+ * in with the next save.<br>
+ * All file access happens on the save executor.
+ */
+final class PortalPowerJournal
+{
+	private static final int MAGIC = 0x53504A4C;	// "SPJL"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = Integer.BYTES * 2;
+	private static final int RECORD_SIZE = Long.BYTES * 2 + Integer.BYTES;
+	private static final int COMPACTION_THRESHOLD = 8192;
+
+	private final File file;
+	private final IntOpenHashSet changedHandles;
+	private int recordCount;
+	private boolean damaged;
+	// Only accessed on the save executor.
+	private boolean writeFailed;
+
+	PortalPowerJournal(File file)
+	{
+		this.file = file;
+		changedHandles = new IntOpenHashSet();
+	}
+
+	/**
+	 * Marks the power of the portal with the specified handle as changed, so it gets
+	 * journaled on the next save.
+	 */
+	void setChanged(int handle)
+	{
+		changedHandles.add(handle);
+	}
+
+	/**
+	 * Determines if the journal neither contains records nor has pending changes.
+	 */
+	boolean isEmpty()
+	{
+		return (recordCount == 0 && changedHandles.isEmpty());
+	}
+
+	/**
+	 * Determines if the journal should be folded into the save segments.
+	 */
+	boolean needsCompaction()
+	{
+		return (damaged || recordCount + changedHandles.size() > COMPACTION_THRESHOLD);
+	}
+
+	/**
+	 * Applies all records in the journal file to the portals of the specified dimension.
+	 * Must be called after the save segments of the dimension were loaded.
+	 *
+	 * @param dimension
+	 * The dimension the journal belongs to.
+	 */
+	void replay(ResourceKey<Level> dimension)
+	{
+		if (!file.isFile()) return;
+
+		long length = file.length();
+		int records = 0;
+
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+		{
+			if (length >= HEADER_SIZE && input.readInt() == MAGIC)
+			{
+				int version = input.readInt();
+				records = (int)((length - HEADER_SIZE) / RECORD_SIZE);
+
+				// An incomplete record means the last write was interrupted. New records can't
+				// be appended behind it, so the journal gets folded in with the next save.
+				damaged = ((length - HEADER_SIZE) % RECORD_SIZE != 0);
+
+				if (version != VERSION)
+				{
+					SimplePortals.log.error("Unknown version {} of the portal power journal {}.", version, file);
+					damaged = true;
+					records = 0;
+				}
+
+				for (int i = 0; i < records; i++)
+				{
+					PortalRegistry.restorePower(dimension, BlockPos.of(input.readLong()), BlockPos.of(input.readLong()), input.readInt());
+				}
+			}
+			else
+			{
+				SimplePortals.log.error("The portal power journal {} has no valid header and is ignored.", file);
+				damaged = true;
+			}
+		}
+		catch (IOException ex)
+		{
+			SimplePortals.log.error("Could not read the portal power journal {}.", file, ex);
+			damaged = true;
+		}
+
+		recordCount = records;
+	}
+
+	/**
+	 * Queues the current power of all changed portals to be appended to the journal file.
+	 *
+	 * @param dimension
+	 * The dimension the journal belongs to.
+	 */
+	void flush(ResourceKey<Level> dimension)
+	{
+		if (changedHandles.isEmpty()) return;
+
+		LongArrayList corners1 = new LongArrayList(changedHandles.size());
+		LongArrayList corners4 = new LongArrayList(changedHandles.size());
+		IntArrayList power = new IntArrayList(changedHandles.size());
+
+		PortalRegistry.getPowerRecords(dimension, changedHandles, corners1, corners4, power);
+		int[] handles = changedHandles.toIntArray();
+		changedHandles.clear();
+
+		if (corners1.isEmpty()) return;
+
+		// Counted right away, a failed append gets the journal folded in with the next save anyway.
+		recordCount += corners1.size();
+
+		PortalWorldSaveData.submitSave(() -> {
+			if (!append(corners1.toLongArray(), corners4.toLongArray(), power.toIntArray())) onAppendFailed(dimension, handles);
+		});
+	}
+
+	/**
+	 * Forgets all records and pending changes. The file has to be deleted separately with
+	 * {@link #delete()} once the save segments were written.
+	 */
+	void clear()
+	{
+		changedHandles.clear();
+		recordCount = 0;
+		damaged = false;
+	}
+
+	/**
+	 * Marks the save segments of the portals whose power could not be journaled as dirty and
+	 * gets the journal folded in with the next save.
+	 */
+	private void onAppendFailed(ResourceKey<Level> dimension, int[] handles)
+	{
+		PortalWorldSaveData.onWriteFailed(() -> {
+			damaged = true;
+			for (int handle : handles) PortalWorldSaveData.setSegmentDirty(dimension, handle / PortalRegistry.SAVE_SEGMENT_SIZE);
+		});
+	}
+
+	/**
+	 * Appends the specified records to the journal file.
+	 *
+	 * @return
+	 * <code>true</code> if the records were written, otherwise <code>false</code>.
+	 */
+	private boolean append(long[] corners1, long[] corners4, int[] power)
+	{
+		// The file may end in an incomplete record, appending to it would misalign everything behind it.
+		if (writeFailed) return false;
+
+		// A new journal starts with the header. Runs on the save executor, so the file can't change in between.
+		boolean isNew = (file.length() == 0);
+
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true))))
+		{
+			if (isNew)
+			{
+				output.writeInt(MAGIC);
+				output.writeInt(VERSION);
+			}
+
+			for (int i = 0; i < corners1.length; i++)
+			{
+				output.writeLong(corners1[i]);
+				output.writeLong(corners4[i]);
+				output.writeInt(power[i]);
+			}
+		}
+		catch (IOException ex)
+		{
+			SimplePortals.log.error("Could not write the portal power journal {}.", file, ex);
+			writeFailed = true;
+		}
+
+		return !writeFailed;
+	}
+
+	/**
+	 * Deletes the journal file. Must be called on the save executor.
+	 */
+	void delete()
+	{
+		try
+		{
+			Files.deleteIfExists(file.toPath());
+			writeFailed = false;
+		}
+		catch (IOException ex)
+		{
+			SimplePortals.log.error("Could not delete the portal power journal {}.", file, ex);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package net.zarathul.simpleportals.common;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.saveddata.SavedData;
+import net.zarathul.simpleportals.SimplePortals;
+import net.zarathul.simpleportals.registration.PortalRegistry;
+import net.zarathul.simpleportals.registration.PortalSegmentSnapshot;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Responsible for saving/loading one segment of the {@link PortalRegistry} data.
+ * See {@link PortalWorldSaveData}.<br>
+ * Saving only takes a snapshot of the segment on the server thread. Building the NBT data,
+ * compressing it and writing the file happens on the save executor. A failed write marks the
+ * segment as dirty again.
+ */
+public class PortalSegmentSaveData extends SavedData
+{
+	private ResourceKey<Level> dimension;
+	private int segment;
+	private boolean handlesKept = true;
+
+	public PortalSegmentSaveData()
+	{
+	}
+
+	public PortalSegmentSaveData(ResourceKey<Level> dimension, int segment)
+	{
+		init(dimension, segment);
+	}
+
+	public static PortalSegmentSaveData load(CompoundTag tag)
+	{
+		PortalSegmentSaveData data = new PortalSegmentSaveData();
+		data.handlesKept = PortalRegistry.readSegmentFromNBT(tag);
+
+		return data;
+	}
+
+	/**
+	 * Sets the dimension and the index of the segment. Necessary because segments
+	 * get created by {@link net.minecraft.world.level.storage.DimensionDataStorage}.
+	 */
+	void init(ResourceKey<Level> dimension, int segment)
+	{
+		this.dimension = dimension;
+		this.segment = segment;
+	}
+
+	/**
+	 * Determines if all portals of this segment kept their saved handles when loaded.
+	 */
+	boolean hasKeptHandles()
+	{
+		return handlesKept;
+	}
+
+	@Override
+	public CompoundTag save(CompoundTag tag)
+	{
+		PortalRegistry.snapshotSegment(dimension, segment).writeToNBT(tag);
+		return tag;
+	}
+
+	@Override
+	public void save(File file)
+	{
+		if (!isDirty()) return;
+
+		PortalSegmentSnapshot snapshot = PortalRegistry.snapshotSegment(dimension, segment);
+		setDirty(false);
+
+		PortalWorldSaveData.submitSave(() -> {
+			CompoundTag dataTag = new CompoundTag();
+			snapshot.writeToNBT(dataTag);
+
+			CompoundTag tag = new CompoundTag();
+			tag.put("data", dataTag);
+			tag.putInt("DataVersion", SharedConstants.getCurrentVersion().getWorldVersion());
+
+			try
+			{
+				NbtIo.writeCompressed(tag, file);
+			}
+			catch (IOException ex)
+			{
+				SimplePortals.log.error("Could not save portal data to {}.", file, ex);
+				PortalWorldSaveData.onWriteFailed(() -> PortalWorldSaveData.setSegmentDirty(dimension, segment));
+			}
+		});
+	}
+}
@@ -0,0 +1,93 @@
+package net.zarathul.simpleportals.common;
+
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.Level;
+import net.zarathul.simpleportals.registration.PortalRegistry;
+
+import java.util.function.Supplier;
+
+/**
+ * Persists the {@link PortalRegistry}.<br>
+ * The portals of a dimension are loaded into the registry when the dimension loads and
+ * removed again when it unloads. In between, the registry reports every change, so the
+ * storage only has to write what actually changed. All methods are called on the server thread.
+ */
+public interface PortalStorage
+{
+	/**
+	 * The available storage backends.
+	 */
+	enum Backend
+	{
+		/**
+		 * Segmented NBT files in the data folder of every dimension (see {@link PortalWorldSaveData}).
+		 */
+		NBT(NbtPortalStorage::new),
+		/**
+		 * One row per portal in an embedded H2 database (see {@link JdbcPortalStorage}).
+		 */
+		DATABASE(JdbcPortalStorage::new);
+
+		private final Supplier<PortalStorage> factory;
+
+		Backend(Supplier<PortalStorage> factory)
+		{
+			this.factory = factory;
+		}
+
+		/**
+		 * Creates a new instance of the backend.
+		 */
+		public PortalStorage create()
+		{
+			return factory.get();
+		}
+	}
+
+	/**
+	 * Loads the portals of the specified dimension into the registry.
+	 *
+	 * @param world
+	 * The {@link ServerLevel} that was loaded.
+	 */
+	void load(ServerLevel world);
+
+	/**
+	 * Saves pending changes of the specified dimension and removes its portals from the registry.
+	 *
+	 * @param world
+	 * The {@link ServerLevel} that gets unloaded.
+	 */
+	void unload(ServerLevel world);
+
+	/**
+	 * Called after a portal was registered or unregistered.
+	 *
+	 * @param dimension
+	 * The dimension the portal is in.
+	 * @param handle
+	 * The handle of the portal.
+	 */
+	void setPortalDirty(ResourceKey<Level> dimension, int handle);
+
+	/**
+	 * Called after the power of a portal changed.
+	 *
+	 * @param dimension
+	 * The dimension the portal is in.
+	 * @param handle
+	 * The handle of the portal.
+	 */
+	void setPowerDirty(ResourceKey<Level> dimension, int handle);
+
+	/**
+	 * Called after the registry was cleared.
+	 */
+	void setAllPortalsDirty();
+
+	/**
+	 * Called when the server stopped. Must not return before all data is written.
+	 */
+	void close();
+}
@@ -0,0 +1,395 @@
+package net.zarathul.simpleportals.common;
+
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import net.minecraft.Util;
+import net.minecraft.core.BlockPos;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.NbtUtils;
+import net.minecraft.nbt.Tag;
+import net.minecraft.nbt.TagParser;
+import net.minecraft.network.chat.Component;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.storage.LevelResource;
+import net.zarathul.simpleportals.SimplePortals;
+import net.zarathul.simpleportals.registration.Portal;
+import net.zarathul.simpleportals.registration.PortalRegistry;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Exports the portal registry to and imports it from a text file with one portal per line.
+ * Every line is the SNBT representation of a portal (see {@link Portal#serializeNBT()}) with
+ * its power, its power gauges and its readable address name added.<br>
+ * Files are read and written on the IO pool in chunks of {@link #CHUNK_SIZE} portals, so
+ * neither the server thread nor the memory usage depend on the size of the file. Imported
+ * portals are checked against the blocks in the world and registered on the server thread,
+ * one chunk at a time. The IO thread and the server thread hand the chunks back and forth
+ * without waiting for each other, an import stops once the server no longer runs.
+ */
+public final class PortalTransfer
+{
+	private static final String FOLDER_NAME = SimplePortals.MOD_ID;
+	private static final String FILE_EXTENSION = ".snbt";
+	private static final int CHUNK_SIZE = 1000;
+
+	// Only one transfer at a time, an import and an export of the same file would get in each others way.
+	private static final AtomicBoolean running = new AtomicBoolean();
+	// Changes when the running transfer gets cancelled, so it can notice.
+	private static final AtomicInteger generation = new AtomicInteger();
+
+	/**
+	 * A portal read from a transfer file.
+	 */
+	private static class ImportEntry
+	{
+		final Portal portal;
+		final List<BlockPos> gauges;
+		final int power;
+
+		ImportEntry(Portal portal, List<BlockPos> gauges, int power)
+		{
+			this.portal = portal;
+			this.gauges = gauges;
+			this.power = power;
+		}
+	}
+
+	/**
+	 * The state of a running import.
+	 */
+	private static class Import
+	{
+		final MinecraftServer server;
+		final Path file;
+		final Consumer<Component> progress;
+		final int transfer;
+		BufferedReader reader;
+		int imported;
+		int skippedLines;
+		int skippedPortals;
+
+		Import(MinecraftServer server, Path file, Consumer<Component> progress)
+		{
+			this.server = server;
+			this.file = file;
+			this.progress = progress;
+			this.transfer = generation.get();
+		}
+
+		boolean isCancelled()
+		{
+			return (transfer != generation.get() || !server.isRunning());
+		}
+
+		/**
+		 * Reads the next chunk and hands it to the server thread. Runs on the IO pool.
+		 */
+		void readChunk()
+		{
+			if (isCancelled())
+			{
+				finish();
+				return;
+			}
+
+			List<ImportEntry> chunk = new ArrayList<>(CHUNK_SIZE);
+			boolean isLast = false;
+
+			try
+			{
+				if (reader == null) reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+
+				while (chunk.size() < CHUNK_SIZE)
+				{
+					String line = reader.readLine();
+
+					if (line == null)
+					{
+						isLast = true;
+						break;
+					}
+
+					if (line.isBlank()) continue;
+
+					try
+					{
+						chunk.add(readPortal(TagParser.parseTag(line)));
+					}
+					catch (CommandSyntaxException | RuntimeException ex)
+					{
+						// Unparsable lines or invalid portal data.
+						skippedLines++;
+					}
+				}
+			}
+			catch (IOException ex)
+			{
+				SimplePortals.log.error("Could not import portals from {}.", file, ex);
+				server.execute(() -> progress.accept(Component.translatable("commands.errors.transfer_failed", ex.getMessage())));
+				finish();
+				return;
+			}
+
+			boolean isLastChunk = isLast;
+			server.execute(() -> registerChunk(chunk, isLastChunk));
+		}
+
+		/**
+		 * Registers a chunk and starts reading the next one. Runs on the server thread.
+		 */
+		void registerChunk(List<ImportEntry> chunk, boolean isLast)
+		{
+			if (isCancelled())
+			{
+				finish();
+				return;
+			}
+
+			if (!chunk.isEmpty())
+			{
+				imported += PortalTransfer.registerChunk(server, chunk, this);
+				progress.accept(Component.translatable("commands.sportals.import.progress", imported));
+			}
+
+			if (isLast)
+			{
+				progress.accept(Component.translatable("commands.sportals.import.success", imported, file, skippedLines, skippedPortals));
+				finish();
+			}
+			else
+			{
+				CompletableFuture.runAsync(this::readChunk, Util.ioPool());
+			}
+		}
+
+		void finish()
+		{
+			try
+			{
+				if (reader != null) reader.close();
+			}
+			catch (IOException ex)
+			{
+				SimplePortals.log.error("Could not close {}.", file, ex);
+			}
+
+			finishTransfer(transfer);
+		}
+	}
+
+	/**
+	 * Stops the running transfer, if there is one. Called when the server stops, imports
+	 * can't continue without it.
+	 */
+	public static void cancel()
+	{
+		generation.incrementAndGet();
+		running.set(false);
+	}
+
+	/**
+	 * Gets the path of the transfer file with the specified name.
+	 */
+	public static Path getFile(MinecraftServer server, String name)
+	{
+		return server.getWorldPath(LevelResource.ROOT).resolve(FOLDER_NAME).resolve(name + FILE_EXTENSION);
+	}
+
+	/**
+	 * Writes all registered portals to the specified file.
+	 *
+	 * @param server
+	 * The server.
+	 * @param file
+	 * The file to write. Gets replaced if it exists.
+	 * @param progress
+	 * Receives progress messages. Always called on the server thread.
+	 * @return
+	 * <code>false</code> if another transfer is still running, otherwise <code>true</code>.
+	 */
+	public static boolean exportPortals(MinecraftServer server, Path file, Consumer<Component> progress)
+	{
+		if (!running.compareAndSet(false, true)) return false;
+
+		int transfer = generation.get();
+		// The snapshot is immutable, so the portals can be read on any thread.
+		List<Portal> portals = PortalRegistry.getSnapshot().getAllPortals();
+		progress.accept(Component.translatable("commands.sportals.export.started", portals.size(), file));
+
+		CompletableFuture.runAsync(() -> {
+			try
+			{
+				Files.createDirectories(file.getParent());
+
+				try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+				{
+					for (int i = 0; i < portals.size(); i++)
+					{
+						writer.write(writePortal(portals.get(i)).toString());
+						writer.newLine();
+
+						if ((i + 1) % CHUNK_SIZE == 0)
+						{
+							int exported = i + 1;
+							server.execute(() -> progress.accept(Component.translatable("commands.sportals.export.progress", exported, portals.size())));
+						}
+					}
+				}
+
+				server.execute(() -> progress.accept(Component.translatable("commands.sportals.export.success", portals.size(), file)));
+			}
+			catch (IOException ex)
+			{
+				SimplePortals.log.error("Could not export portals to {}.", file, ex);
+				server.execute(() -> progress.accept(Component.translatable("commands.errors.transfer_failed", ex.getMessage())));
+			}
+			finally
+			{
+				finishTransfer(transfer);
+			}
+		}, Util.ioPool());
+
+		return true;
+	}
+
+	/**
+	 * Registers all portals in the specified file, without placing any blocks. Portals that
+	 * are already registered, that are in dimensions that are not loaded or whose blocks
+	 * don't exist in the world are skipped.
+	 *
+	 * @param server
+	 * The server.
+	 * @param file
+	 * The file to read.
+	 * @param progress
+	 * Receives progress messages. Always called on the server thread.
+	 * @return
+	 * <code>false</code> if another transfer is still running, otherwise <code>true</code>.
+	 */
+	public static boolean importPortals(MinecraftServer server, Path file, Consumer<Component> progress)
+	{
+		if (!running.compareAndSet(false, true)) return false;
+
+		progress.accept(Component.translatable("commands.sportals.import.started", file));
+
+		Import state = new Import(server, file, progress);
+		CompletableFuture.runAsync(state::readChunk, Util.ioPool());
+
+		return true;
+	}
+
+	/**
+	 * Ends the specified transfer, unless it was cancelled and another one started since.
+	 */
+	private static void finishTransfer(int transfer)
+	{
+		if (generation.get() == transfer) running.set(false);
+	}
+
+	private static CompoundTag writePortal(Portal portal)
+	{
+		CompoundTag tag = portal.serializeNBT();
+		tag.putString("name", portal.getAddress().toString());
+		tag.putInt("power", PortalRegistry.getPower(portal));
+
+		ListTag gaugesTag = new ListTag();
+		for (BlockPos pos : PortalRegistry.getPowerGauges(portal)) gaugesTag.add(NbtUtils.writeBlockPos(pos));
+		tag.put("gauges", gaugesTag);
+
+		return tag;
+	}
+
+	private static ImportEntry readPortal(CompoundTag tag)
+	{
+		Portal portal = Portal.deserializeNBT(tag);
+		if (portal.getAxis() == null) throw new IllegalArgumentException("Invalid portal axis.");
+
+		ListTag gaugesTag = tag.getList("gauges", Tag.TAG_COMPOUND);
+		List<BlockPos> gauges = new ArrayList<>(gaugesTag.size());
+
+		for (int i = 0; i < gaugesTag.size(); i++)
+		{
+			gauges.add(NbtUtils.readBlockPos(gaugesTag.getCompound(i)));
+		}
+
+		return new ImportEntry(portal, gauges, tag.getInt("power"));
+	}
+
+	/**
+	 * Checks and registers the portals of one chunk, grouped by dimension. Must be called on
+	 * the server thread.
+	 *
+	 * @return
+	 * The number of registered portals.
+	 */
+	private static int registerChunk(MinecraftServer server, List<ImportEntry> chunk, Import state)
+	{
+		Map<ServerLevel, Map<Portal, List<BlockPos>>> portalsByLevel = new HashMap<>();
+		List<ImportEntry> newPortals = new ArrayList<>(chunk.size());
+
+		for (ImportEntry entry : chunk)
+		{
+			ServerLevel level = server.getLevel(entry.portal.getDimension());
+
+			if (level == null)
+			{
+				state.skippedPortals++;
+				continue;
+			}
+
+			// Portals that are already registered keep their power.
+			if (PortalRegistry.getHandle(entry.portal) == -1) newPortals.add(entry);
+
+			portalsByLevel.computeIfAbsent(level, key -> new LinkedHashMap<>()).put(entry.portal, entry.gauges);
+		}
+
+		int count = 0;
+
+		for (Map.Entry<ServerLevel, Map<Portal, List<BlockPos>>> entry : portalsByLevel.entrySet())
+		{
+			// Stale or edited files must not create destinations without blocks.
+			state.skippedPortals += PortalRegistry.checkPortals(entry.getKey(), entry.getValue());
+			count += PortalRegistry.registerAll(entry.getKey(), entry.getValue());
+		}
+
+		List<Portal> droppedPortals = new ArrayList<>();
+
+		for (ImportEntry entry : newPortals)
+		{
+			if (!portalsByLevel.get(server.getLevel(entry.portal.getDimension())).containsKey(entry.portal))
+			{
+				droppedPortals.add(entry.portal);
+			}
+			else if (entry.power > 0)
+			{
+				PortalRegistry.addPower(entry.portal, entry.power);
+			}
+		}
+
+		for (ImportEntry entry : chunk)
+		{
+			if (server.getLevel(entry.portal.getDimension()) == null) droppedPortals.add(entry.portal);
+		}
+
+		// The addresses of dropped portals were interned when they were read.
+		PortalRegistry.releaseAddresses(droppedPortals);
+
+		return count;
+	}
+}
@@ -1,42 +1,415 @@
 package net.zarathul.simpleportals.common;
 
+import net.minecraft.SharedConstants;
+import net.minecraft.core.Registry;
 import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.StringTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.dimension.DimensionType;
 import net.minecraft.world.level.saveddata.SavedData;
 import net.minecraft.world.level.storage.DimensionDataStorage;
+import net.minecraft.world.level.storage.LevelResource;
 import net.zarathul.simpleportals.SimplePortals;
 import net.zarathul.simpleportals.registration.PortalRegistry;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- * Responsible for saving/loading {@link PortalRegistry} data.
+ * Responsible for saving/loading {@link PortalRegistry} data.<br>
+ * Every dimension stores its own portals in its own data folder, so the portals of a dimension
+ * are only loaded together with the dimension. The portals are further split into segments of
+ * {@link PortalRegistry#SAVE_SEGMENT_SIZE} handles that are saved in separate files (see
+ * {@link PortalSegmentSaveData}). Changes only mark the affected segment as dirty, so a save
+ * only rewrites the segments that actually changed. This file itself only stores the number
+ * of segments. Segments are written on a background thread (see {@link PortalSegmentSaveData#save(java.io.File)}).<br>
+ * Power changes don't touch the segments at all, they are appended to a {@link PortalPowerJournal}
+ * that gets folded into the segments once it grows too long or the dimension unloads.<br>
+ * Writes that fail on the save executor mark their data as changed again on the server thread
+ * (see {@link #onWriteFailed(Runnable)}), so it gets written with the next save.
  */
 public class PortalWorldSaveData extends SavedData
 {
 	private static final String DATA_NAME = SimplePortals.MOD_ID;
+	private static final long SAVE_TIMEOUT_SECONDS = 60;
+	
+	// A single thread, so writes of the same segment can't overtake each other.
+	private static final ExecutorService saveExecutor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, SimplePortals.MOD_ID + "-save");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private static final Map<ResourceKey<Level>, PortalWorldSaveData> loadedDimensions = new HashMap<>();
+	private static final AtomicInteger failedWrites = new AtomicInteger();
+	private static volatile MinecraftServer server;
+	private static Future<?> lastSave;
+	private static PortalWorldSaveData legacyDataHolder;
+	
+	private final List<PortalSegmentSaveData> segments;
+	private ResourceKey<Level> dimension;
+	private DimensionDataStorage storage;
+	private PortalPowerJournal journal;
+	private boolean compactionRequested;
+	private int savedSegmentCount;
+	
+	// Portal data in the old single file format contains the portals of all dimensions. The
+	// portals get moved to the dimensions they belong to once those are loaded. Until all
+	// dimensions are converted, the old data is kept.
+	private CompoundTag legacyData;
+	private final Set<ResourceKey<Level>> unconvertedDimensions;
+	private final Set<ResourceKey<Level>> convertedDimensions;
 	
 	public PortalWorldSaveData()
 	{
+		segments = new ArrayList<>();
+		unconvertedDimensions = new HashSet<>();
+		convertedDimensions = new HashSet<>();
 	}
 
 	public static PortalWorldSaveData load(CompoundTag tag)
 	{
-		PortalRegistry.readFromNBT(tag);
+		PortalWorldSaveData data = new PortalWorldSaveData();
+		data.savedSegmentCount = tag.getInt("segments");
+
+		ListTag convertedTag = tag.getList("convertedDimensions", Tag.TAG_STRING);
+
+		for (int i = 0; i < convertedTag.size(); i++)
+		{
+			data.convertedDimensions.add(ResourceKey.create(Registry.DIMENSION_REGISTRY, new ResourceLocation(convertedTag.getString(i))));
+		}
 
-		return new PortalWorldSaveData();
+		data.unconvertedDimensions.addAll(PortalRegistry.readFromNBT(tag, data.convertedDimensions));
+
+		if (!data.unconvertedDimensions.isEmpty())
+		{
+			data.legacyData = new CompoundTag();
+			data.legacyData.put("portals", tag.get("portals"));
+			data.legacyData.put("portalBlocks", tag.get("portalBlocks"));
+			data.legacyData.put("power", tag.get("power"));
+			legacyDataHolder = data;
+		}
+		else if (tag.contains("portalBlocks"))
+		{
+			// Everything was converted, so the old data can go.
+			data.setDirty();
+		}
+
+		return data;
 	}
 
 	@Override
 	public CompoundTag save(CompoundTag tag)
 	{
-		PortalRegistry.writeToNBT(tag);
+		tag.putInt("segments", segments.size());
+
+		if (legacyData != null)
+		{
+			tag.merge(legacyData);
+
+			ListTag convertedTag = new ListTag();
+			convertedDimensions.forEach(converted -> convertedTag.add(StringTag.valueOf(converted.location().toString())));
+			tag.put("convertedDimensions", convertedTag);
+		}
+
 		return tag;
 	}
 
+	@Override
+	public void save(File file)
+	{
+		// Called on every save, dirty or not, because the journal needs to be written as well.
+		if (journal != null)
+		{
+			if (compactionRequested || journal.needsCompaction())
+			{
+				compact(file.getParentFile());
+			}
+			else
+			{
+				journal.flush(dimension);
+			}
+		}
+
+		if (!isDirty()) return;
+
+		CompoundTag tag = new CompoundTag();
+		tag.put("data", save(new CompoundTag()));
+		tag.putInt("DataVersion", SharedConstants.getCurrentVersion().getWorldVersion());
+		setDirty(false);
+
+		try
+		{
+			NbtIo.writeCompressed(tag, file);
+		}
+		catch (IOException ex)
+		{
+			SimplePortals.log.error("Could not save portal data to {}.", file, ex);
+			setDirty();
+		}
+	}
+
+	/**
+	 * Marks the specified segment of the specified dimension as changed, so it gets written
+	 * on the next save.
+	 * 
+	 * @param dimension
+	 * The dimension the segment belongs to.
+	 * @param segment
+	 * The index of the segment.
+	 */
+	public static void setSegmentDirty(ResourceKey<Level> dimension, int segment)
+	{
+		PortalWorldSaveData data = loadedDimensions.get(dimension);
+		if (data != null) data.setSegmentDirty(segment);
+	}
+
+	/**
+	 * Marks the power of the portal with the specified handle as changed, so it gets
+	 * journaled on the next save.
+	 * 
+	 * @param dimension
+	 * The dimension the portal is in.
+	 * @param handle
+	 * The handle of the portal.
+	 */
+	public static void setPowerDirty(ResourceKey<Level> dimension, int handle)
+	{
+		PortalWorldSaveData data = loadedDimensions.get(dimension);
+		if (data != null) data.journal.setChanged(handle);
+	}
+
+	/**
+	 * Marks all segments of all loaded dimensions as changed.
+	 */
+	public static void setAllSegmentsDirty()
+	{
+		loadedDimensions.values().forEach(PortalWorldSaveData::setAllSegmentsDirtyInDimension);
+	}
+
 	public static PortalWorldSaveData get(ServerLevel world)
 	{
 		if (world == null) return null;
 		DimensionDataStorage storage = world.getDataStorage();
+		server = world.getServer();
+
+		PortalWorldSaveData data = storage.computeIfAbsent(PortalWorldSaveData::load, PortalWorldSaveData::new, DATA_NAME);
+		
+		if (data.storage == null)
+		{
+			data.journal = new PortalPowerJournal(getDataFolder(world).resolve(DATA_NAME + "_power.journal").toFile());
+			data.loadSegments(world.dimension(), storage);
+		}
+
+		return data;
+	}
+
+	/**
+	 * Saves pending changes of the specified dimension and removes its portals from the registry.
+	 * 
+	 * @param world
+	 * The {@link ServerLevel} that gets unloaded.
+	 */
+	public static void unload(ServerLevel world)
+	{
+		if (world == null) return;
+
+		PortalWorldSaveData data = loadedDimensions.remove(world.dimension());
+		if (data == null) return;
+
+		// Fold the journal in, so the saved data is complete without it.
+		if (!data.journal.isEmpty()) data.compactionRequested = true;
+		
+		if (data.compactionRequested || data.isDirty() || data.segments.stream().anyMatch(SavedData::isDirty)) data.storage.save();
+
+		PortalRegistry.unloadDimension(world.dimension());
+	}
 
-		return storage.computeIfAbsent(PortalWorldSaveData::load, PortalWorldSaveData::new, DATA_NAME);
+	/**
+	 * Forgets all loaded dimensions. Called when the server stops.
+	 */
+	public static void reset()
+	{
+		loadedDimensions.clear();
+		legacyDataHolder = null;
+		server = null;
+	}
+
+	/**
+	 * Queues a segment write on the save executor.
+	 */
+	static synchronized void submitSave(Runnable save)
+	{
+		lastSave = saveExecutor.submit(save);
+	}
+
+	/**
+	 * Called on the save executor after a write failed. Queues the specified task on the server
+	 * thread, it should mark the data that could not be written as changed again. Nothing gets
+	 * queued once the server stops, the data is lost then.
+	 * 
+	 * @param requeue
+	 * The task that marks the data for saving again.
+	 */
+	static void onWriteFailed(Runnable requeue)
+	{
+		failedWrites.incrementAndGet();
+
+		MinecraftServer current = server;
+		if (current != null && current.isRunning()) current.execute(requeue);
+	}
+
+	/**
+	 * Blocks until all queued segment writes are done. Must be called before the
+	 * server shuts down, otherwise portal data may be lost.
+	 */
+	public static void awaitPendingSaves()
+	{
+		Future<?> pending;
+
+		synchronized (PortalWorldSaveData.class)
+		{
+			pending = lastSave;
+			lastSave = null;
+		}
+
+		if (pending == null) return;
+
+		try
+		{
+			// Writes are executed in order, so once the last one is done all of them are.
+			pending.get(SAVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		}
+		catch (Exception ex)
+		{
+			SimplePortals.log.error("Waiting for portal data to be saved failed.", ex);
+		}
+	}
+
+	private void setSegmentDirty(int segment)
+	{
+		if (segment < 0) return;
+
+		while (segments.size() <= segment)
+		{
+			// New segments replace whatever file may be left over, so nothing stale gets loaded.
+			PortalSegmentSaveData newSegment = new PortalSegmentSaveData(dimension, segments.size());
+			storage.set(getSegmentName(segments.size()), newSegment);
+			segments.add(newSegment);
+			newSegment.setDirty();
+			setDirty();
+		}
+
+		segments.get(segment).setDirty();
+	}
+
+	/**
+	 * Writes all segments and queues the deletion of the journal behind them, so the journal
+	 * only goes away once the segments contain the current power. If any write failed in the
+	 * meantime, the journal is kept and compacted again with the next save.
+	 */
+	private void compact(File dataFolder)
+	{
+		int failures = failedWrites.get();
+
+		for (int segment = 0; segment < segments.size(); segment++)
+		{
+			segments.get(segment).setDirty();
+			segments.get(segment).save(new File(dataFolder, getSegmentName(segment) + ".dat"));
+		}
+
+		journal.clear();
+		compactionRequested = false;
+
+		submitSave(() -> {
+			if (failedWrites.get() == failures)
+			{
+				journal.delete();
+			}
+			else
+			{
+				SimplePortals.log.warn("Kept the portal power journal of {}, because portal data could not be saved.", dimension.location());
+				onWriteFailed(() -> compactionRequested = true);
+			}
+		});
+	}
+
+	private void setAllSegmentsDirtyInDimension()
+	{
+		int segmentCount = Math.max(segments.size(), PortalRegistry.getSaveSegmentCount(dimension));
+
+		for (int segment = 0; segment < segmentCount; segment++)
+		{
+			setSegmentDirty(segment);
+		}
+	}
+
+	private void loadSegments(ResourceKey<Level> dimension, DimensionDataStorage storage)
+	{
+		this.dimension = dimension;
+		this.storage = storage;
+
+		boolean handlesKept = true;
+
+		for (int segment = 0; segment < savedSegmentCount; segment++)
+		{
+			PortalSegmentSaveData segmentData = storage.computeIfAbsent(PortalSegmentSaveData::load, PortalSegmentSaveData::new, getSegmentName(segment));
+			segmentData.init(dimension, segment);
+			handlesKept &= segmentData.hasKeptHandles();
+			segments.add(segmentData);
+		}
+
+		journal.replay(dimension);
+
+		loadedDimensions.put(dimension, this);
+		boolean repaired = PortalRegistry.onDimensionLoaded(dimension);
+
+		// Portals that were moved to other handles would otherwise be saved twice. Repaired
+		// data gets written back, so it doesn't have to be repaired on every load.
+		if (!handlesKept || repaired) setAllSegmentsDirtyInDimension();
+
+		if (legacyDataHolder != null && legacyDataHolder.unconvertedDimensions.remove(dimension))
+		{
+			setAllSegmentsDirtyInDimension();
+			legacyDataHolder.convertedDimensions.add(dimension);
+			legacyDataHolder.setDirty();
+
+			if (legacyDataHolder.unconvertedDimensions.isEmpty())
+			{
+				legacyDataHolder.legacyData = null;
+				legacyDataHolder = null;
+			}
+		}
+	}
+
+	/**
+	 * Gets the folder the saved data of the specified dimension is stored in.
+	 */
+	static Path getDataFolder(ServerLevel world)
+	{
+		return DimensionType.getStorageFolder(world.dimension(), world.getServer().getWorldPath(LevelResource.ROOT)).resolve("data");
+	}
+
+	private static String getSegmentName(int segment)
+	{
+		return DATA_NAME + "_" + segment;
 	}
 }
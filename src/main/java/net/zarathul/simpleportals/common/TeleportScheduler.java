@@ -0,0 +1,199 @@
+package net.zarathul.simpleportals.common;
+
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerPlayer;
+import net.zarathul.simpleportals.Settings;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Runs queued player teleportations once they are due.<br>
+ * Tasks are kept in a timing wheel of {@link #WHEEL_SIZE} buckets indexed by the tick they are
+ * due in, so every tick only looks at the one bucket of that tick, no matter how many tasks
+ * are queued. Every task remembers its own due tick, so changing the teleportation delay only
+ * affects tasks queued afterwards. Tasks due more than one revolution ahead stay in their
+ * bucket until their tick comes around. Every player has at most one queued task, queueing
+ * another one replaces it.<br>
+ * One instance exists per running server. All methods must be called on the server thread.
+ */
+public final class TeleportScheduler
+{
+	// Larger than the maximum teleportation delay, so tasks normally never wait for a second revolution.
+	private static final int WHEEL_SIZE = 64;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+	private final MinecraftServer server;
+	private final List<List<TeleportTask>> wheel = new ArrayList<>(WHEEL_SIZE);
+	private final Map<UUID, TeleportTask> tasksByPlayer = new HashMap<>();
+	private int lastTick;
+
+	// metrics
+	private long executedCount;
+	private long totalLateness;
+	private int maxLateness;
+
+	public TeleportScheduler(MinecraftServer server)
+	{
+		this.server = server;
+		this.lastTick = server.getTickCount();
+
+		for (int i = 0; i < WHEEL_SIZE; i++) wheel.add(new ArrayList<>());
+	}
+
+	/**
+	 * Queues a teleportation that runs after {@link Settings#playerTeleportationDelay} ticks and
+	 * starts loading its destination chunk. A task that is already queued for the same player
+	 * gets cancelled.
+	 *
+	 * @param task
+	 * The {@link TeleportTask} to queue.
+	 */
+	public void schedule(TeleportTask task)
+	{
+		// Cancel first, the replaced task would otherwise release the ticket of the new one if both go to the same chunk.
+		cancel(task.player);
+
+		// Never schedule into a bucket that was already handled this tick.
+		task.dueTick = Math.max(task.creationTickCount + Settings.playerTeleportationDelay + 1, lastTick + 1);
+		task.runTick = task.dueTick;
+		task.requestDestinationChunk();
+
+		tasksByPlayer.put(task.player.getUUID(), task);
+		getBucket(task.dueTick).add(task);
+	}
+
+	/**
+	 * Removes the queued task of the specified player, if there is one.
+	 *
+	 * @param player
+	 * The {@link ServerPlayer} whose teleportation should not happen.
+	 * @return
+	 * <code>true</code> if a task was removed, otherwise <code>false</code>.
+	 */
+	public boolean cancel(ServerPlayer player)
+	{
+		TeleportTask task = tasksByPlayer.remove(player.getUUID());
+		if (task == null) return false;
+
+		getBucket(task.runTick).remove(task);
+		task.releaseDestinationChunk();
+
+		return true;
+	}
+
+	/**
+	 * Runs all tasks that are due. Tasks whose destination chunk is still loading wait for it,
+	 * at most {@link Settings#playerTeleportationChunkTimeout} ticks.
+	 */
+	public void tick()
+	{
+		int now = server.getTickCount();
+
+		// Normally exactly one tick passed since the last call. A full revolution covers every bucket.
+		int first = Math.max(lastTick + 1, now - WHEEL_MASK);
+		lastTick = now;
+
+		for (int tick = first; tick <= now; tick++)
+		{
+			runBucket(tick, now);
+		}
+	}
+
+	/**
+	 * Drops all queued tasks and releases their destination chunks. Called before the server stops.
+	 */
+	public void clear()
+	{
+		for (TeleportTask task : tasksByPlayer.values()) task.releaseDestinationChunk();
+
+		tasksByPlayer.clear();
+		for (List<TeleportTask> bucket : wheel) bucket.clear();
+	}
+
+	/**
+	 * Gets the number of queued tasks.
+	 */
+	public int getQueueDepth()
+	{
+		return tasksByPlayer.size();
+	}
+
+	/**
+	 * Gets the number of tasks that ran since the server started.
+	 */
+	public long getExecutedCount()
+	{
+		return executedCount;
+	}
+
+	/**
+	 * Gets the average number of ticks tasks ran after they were due.
+	 */
+	public double getAverageLateness()
+	{
+		return (executedCount > 0) ? (double)totalLateness / executedCount : 0;
+	}
+
+	/**
+	 * Gets the highest number of ticks a task ran after it was due.
+	 */
+	public int getMaxLateness()
+	{
+		return maxLateness;
+	}
+
+	private void runBucket(int tick, int now)
+	{
+		List<TeleportTask> bucket = getBucket(tick);
+		if (bucket.isEmpty()) return;
+
+		// Teleporting can queue new tasks, so work on a copy of the bucket.
+		List<TeleportTask> tasks = new ArrayList<>(bucket);
+		bucket.clear();
+
+		for (TeleportTask task : tasks)
+		{
+			// Cancelled by one of the teleportations before it.
+			if (tasksByPlayer.get(task.player.getUUID()) != task) continue;
+
+			if (task.runTick > tick)
+			{
+				// Due in a later revolution.
+				bucket.add(task);
+			}
+			else if (task.player.isRemoved())
+			{
+				// The player left the game or died. Respawned players are new entities.
+				tasksByPlayer.remove(task.player.getUUID());
+				task.releaseDestinationChunk();
+			}
+			else if (task.isDestinationChunkReady() || now >= task.dueTick + Settings.playerTeleportationChunkTimeout)
+			{
+				tasksByPlayer.remove(task.player.getUUID());
+				task.releaseDestinationChunk();
+
+				int lateness = now - task.dueTick;
+				executedCount++;
+				totalLateness += lateness;
+				maxLateness = Math.max(maxLateness, lateness);
+
+				Utils.teleportTo(task.player, task.dimension, task.pos, task.facing);
+			}
+			else
+			{
+				// Still waiting for the destination chunk, look again next tick.
+				task.runTick = now + 1;
+				getBucket(task.runTick).add(task);
+			}
+		}
+	}
+
+	private List<TeleportTask> getBucket(int tick)
+	{
+		return wheel.get(tick & WHEEL_MASK);
+	}
+}
@@ -3,16 +3,33 @@ package net.zarathul.simpleportals.common;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
 import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
 import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.server.level.TicketType;
+import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.Level;
+import net.minecraft.world.level.chunk.ChunkStatus;
+import net.zarathul.simpleportals.SimplePortals;
+
+import java.util.concurrent.CompletableFuture;
 
 public class TeleportTask
 {
+	// Longer than the maximum teleportation delay plus the maximum chunk timeout. Tickets normally
+	// get removed once the task ran, this only matters for tasks that never run.
+	private static final int TICKET_LIFESPAN = 300;
+	private static final TicketType<Integer> DESTINATION_TICKET = TicketType.create(SimplePortals.MOD_ID + "_teleport", Integer::compareTo, TICKET_LIFESPAN);
+
 	public int creationTickCount;
 	public ServerPlayer player;
 	public ResourceKey<Level> dimension;
 	public BlockPos pos;
 	public Direction facing;
+	// The tick the task is due in and the tick it is looked at next, set by the TeleportScheduler.
+	int dueTick;
+	int runTick;
+	private CompletableFuture<?> destinationChunk;
 
 	public TeleportTask(int creationTickCount, ServerPlayer player, ResourceKey<Level> dimension, BlockPos pos, Direction facing)
 	{
@@ -22,4 +39,47 @@ public class TeleportTask
 		this.pos = pos;
 		this.facing = facing;
 	}
+
+	/**
+	 * Starts loading the destination chunk in the background and keeps it loaded until
+	 * {@link #releaseDestinationChunk()} is called. Must be called on the server thread.
+	 */
+	void requestDestinationChunk()
+	{
+		ServerLevel level = getDestinationLevel();
+		if (level == null) return;
+
+		ChunkPos chunkPos = new ChunkPos(pos);
+		level.getChunkSource().addRegionTicket(DESTINATION_TICKET, chunkPos, 0, player.getId());
+		destinationChunk = level.getChunkSource().getChunkFuture(chunkPos.x, chunkPos.z, ChunkStatus.FULL, true);
+	}
+
+	/**
+	 * Determines if the destination chunk finished loading. Chunks that failed to load count
+	 * as ready as well, the teleport then loads them synchronously.
+	 */
+	boolean isDestinationChunkReady()
+	{
+		return (destinationChunk == null || destinationChunk.isDone());
+	}
+
+	/**
+	 * Removes the ticket that keeps the destination chunk loaded. Must be called on the server thread.
+	 */
+	void releaseDestinationChunk()
+	{
+		if (destinationChunk == null) return;
+
+		ServerLevel level = getDestinationLevel();
+		if (level != null) level.getChunkSource().removeRegionTicket(DESTINATION_TICKET, new ChunkPos(pos), 0, player.getId());
+
+		destinationChunk = null;
+	}
+
+	private ServerLevel getDestinationLevel()
+	{
+		MinecraftServer server = player.getServer();
+
+		return (server != null) ? server.getLevel(dimension) : null;
+	}
 }
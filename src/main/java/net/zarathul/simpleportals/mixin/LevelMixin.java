@@ -0,0 +1,25 @@
+package net.zarathul.simpleportals.mixin;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.state.BlockState;
+import net.zarathul.simpleportals.registration.PortalDestinationCache;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+@Mixin(Level.class)
+public abstract class LevelMixin
+{
+	// All other setBlock overloads end up here.
+	@Inject(method = "setBlock(Lnet/minecraft/core/BlockPos;Lnet/minecraft/world/level/block/state/BlockState;II)Z", at = @At("RETURN"))
+	private void onSetBlock(BlockPos pos, BlockState state, int flags, int recursionLeft, CallbackInfoReturnable<Boolean> info)
+	{
+		if (info.getReturnValueZ() && (Object)this instanceof ServerLevel)
+		{
+			PortalDestinationCache.onBlockChanged((ServerLevel)(Object)this, pos);
+		}
+	}
+}
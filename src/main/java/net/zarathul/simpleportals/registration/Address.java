@@ -12,13 +12,19 @@ import java.util.function.BiConsumer;
  * Represents the address of a portal.<br>
  * The address consists of 4 blockIds as provided by
  * {@link PortalRegistry#getAddressBlockId(net.minecraft.world.level.block.Block)}.
- * Multiple blocks with the same name/meta are allowed.
+ * Multiple blocks with the same name/meta are allowed.<br>
+ * Addresses registered with portals are interned (see {@link AddressPool}) and
+ * can therefore be compared by identity.
  */
 public class Address
 {
 	private static final int LENGTH = 4;
+	static final int NO_ID = -1;
 	
 	private String readableName;
+	private int hash;
+	// Volatile, because the pool changes it while snapshot readers compare addresses on other threads.
+	private volatile int id = NO_ID;
 	
 	private final Map<String, Integer> blockCounts;
 
@@ -53,6 +59,33 @@ public class Address
 		return 0;
 	}
 
+	/**
+	 * Gets the id assigned by the {@link AddressPool}.
+	 * 
+	 * @return
+	 * The id or <code>-1</code> if the address is not interned.
+	 */
+	public int getId()
+	{
+		return id;
+	}
+	
+	/**
+	 * Determines if this is the canonical instance of the address.
+	 * 
+	 * @return
+	 * <code>true</code> if the address is interned, otherwise <code>false</code>.
+	 */
+	public boolean isInterned()
+	{
+		return (id != NO_ID);
+	}
+	
+	void setId(int id)
+	{
+		this.id = id;
+	}
+
 	/**
 	 * Executes the passed in action on every block name/count pair.
 	 */
@@ -100,10 +133,7 @@ public class Address
 	@Override
 	public int hashCode()
 	{
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((blockCounts == null) ? 0 : blockCounts.hashCode());
-		return result;
+		return hash;
 	}
 
 	@Override
@@ -115,6 +145,10 @@ public class Address
 		
 		Address other = (Address) obj;
 		
+		// There is only one interned instance per address, so two different interned instances can't be equal.
+		if (isInterned() && other.isInterned()) return false;
+		if (hash != other.hash) return false;
+		
 		// Because the block counts are stored in a TreeMap the order and therefore the readable name
 		// should always be identical.
 		return readableName.equals(other.toString());
@@ -165,6 +199,8 @@ public class Address
 	 * 
 	 * The format is <code>blockIdxblockCount</code> for every
 	 * block id, delimited by "<code>,</code>".
+	 * The hash code is calculated here as well, because the
+	 * block counts never change afterwards.
 	 */
 	private void generateReadableName()
 	{
@@ -183,5 +219,6 @@ public class Address
 		nameBuilder.delete(nameBuilder.length() - 2, nameBuilder.length());
 		
 		readableName = nameBuilder.toString();
+		hash = 31 + blockCounts.hashCode();
 	}
 }
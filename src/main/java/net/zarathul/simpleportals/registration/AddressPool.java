@@ -0,0 +1,115 @@
+package net.zarathul.simpleportals.registration;
+
+import com.google.common.collect.Maps;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Pool of canonical {@link Address} instances.<br>
+ * Every distinct address is represented by exactly one interned instance that carries a dense
+ * integer id (see {@link Address#getId()}). Interned addresses can be compared by identity and
+ * the id can be used as an array index.<br>
+ * Addresses are removed once the last registered portal with that address is gone (see
+ * {@link #remove(Address)}), their ids get reused.<br>
+ * All methods are synchronized, so the pool can be used from any thread.
+ */
+public final class AddressPool
+{
+	private static final HashMap<Address, Address> canonical;
+	private static final ArrayList<Address> byId;
+	private static final IntArrayList freeIds;
+
+	static
+	{
+		canonical = Maps.newHashMap();
+		byId = new ArrayList<>();
+		freeIds = new IntArrayList();
+	}
+
+	/**
+	 * Gets the canonical instance for the specified address. If there is none yet,
+	 * the passed in address becomes the canonical instance and gets assigned a new id.
+	 *
+	 * @param address
+	 * The {@link Address} to intern.
+	 * @return
+	 * The canonical {@link Address} or <code>null</code> if <code>address</code> was <code>null</code>.
+	 */
+	public static synchronized Address intern(Address address)
+	{
+		if (address == null) return null;
+		if (address.isInterned() && byId.get(address.getId()) == address) return address;
+
+		Address existing = canonical.get(address);
+		if (existing != null) return existing;
+
+		if (freeIds.isEmpty())
+		{
+			address.setId(byId.size());
+			byId.add(address);
+		}
+		else
+		{
+			address.setId(freeIds.popInt());
+			byId.set(address.getId(), address);
+		}
+
+		canonical.put(address, address);
+
+		return address;
+	}
+
+	/**
+	 * Removes the specified address from the pool. The instance loses its id and falls back
+	 * to comparing by value, so portals and saved data that still reference it keep working.
+	 * Does nothing if the address is not the canonical instance.
+	 *
+	 * @param address
+	 * The {@link Address} to remove.
+	 */
+	public static synchronized void remove(Address address)
+	{
+		if (address == null || !address.isInterned() || byId.get(address.getId()) != address) return;
+
+		byId.set(address.getId(), null);
+		freeIds.push(address.getId());
+		canonical.remove(address);
+		address.setId(Address.NO_ID);
+	}
+
+	/**
+	 * Gets the canonical instance for the specified address without interning it.
+	 *
+	 * @param address
+	 * The {@link Address} to look up.
+	 * @return
+	 * The canonical {@link Address} or <code>null</code> if the address is not in the pool.
+	 */
+	public static synchronized Address find(Address address)
+	{
+		return (address != null) ? canonical.get(address) : null;
+	}
+
+	/**
+	 * Gets the number of addresses in the pool.
+	 */
+	public static synchronized int size()
+	{
+		return canonical.size();
+	}
+
+	/**
+	 * Empties the pool. The previously canonical instances lose their ids and
+	 * fall back to comparing by value.
+	 */
+	public static synchronized void clear()
+	{
+		for (Address address : canonical.keySet()) address.setId(Address.NO_ID);
+
+		byId.clear();
+		freeIds.clear();
+		canonical.clear();
+	}
+}
@@ -0,0 +1,239 @@
+package net.zarathul.simpleportals.registration;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.core.Direction.Axis;
+import net.minecraft.core.Registry;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.StringTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.level.Level;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Compact save format for a range of portal handles.<br>
+ * Instead of a compound tag per portal, all portals are stored in a few primitive arrays:
+ * <ul>
+ * <li><code>handles</code>: the handle of every portal</li>
+ * <li><code>corners</code>: 4 packed corner positions per portal</li>
+ * <li><code>info</code>: 3 ints per portal, the dimension palette index, the address palette index
+ * and the axis plus the 8 corner facings (3 bits each)</li>
+ * <li><code>power</code>: the power of every portal</li>
+ * <li><code>gaugeCounts</code> and <code>gauges</code>: the number of power gauges per portal and
+ * all packed gauge positions</li>
+ * </ul>
+ * Dimensions and addresses are stored once per segment in the <code>dimensions</code> and
+ * <code>addresses</code> palettes. All other positions get regenerated from the corners.
+ */
+final class CompactPortalFormat
+{
+	private static final int INFO_SIZE = 3;
+	private static final int FACING_BITS = 3;
+	private static final int FACING_MASK = (1 << FACING_BITS) - 1;
+	// Below this many portals, splitting the work costs more than it saves.
+	private static final int PARALLEL_THRESHOLD = 512;
+
+	/**
+	 * Receives the portals read by {@link #read(CompoundTag, PortalConsumer)}.
+	 */
+	@FunctionalInterface
+	interface PortalConsumer
+	{
+		void accept(Portal portal, int handle, int power, List<BlockPos> gauges);
+	}
+
+	/**
+	 * Determines if the specified tag contains data in this format.
+	 */
+	static boolean isCompact(CompoundTag nbt)
+	{
+		return nbt.contains("corners", Tag.TAG_LONG_ARRAY);
+	}
+
+	/**
+	 * Writes all portals in the specified snapshot to a NBT compound tag.
+	 */
+	static void write(PortalSegmentSnapshot snapshot, CompoundTag nbt)
+	{
+		Map<ResourceKey<Level>, Integer> dimensionPalette = new HashMap<>();
+		Map<Address, Integer> addressPalette = new HashMap<>();
+		ListTag dimensionsTag = new ListTag();
+		ListTag addressesTag = new ListTag();
+		IntArrayList info = new IntArrayList();
+		IntArrayList gaugeCounts = new IntArrayList();
+		LongArrayList corners = new LongArrayList();
+		LongArrayList gauges = new LongArrayList();
+		List<BlockPos> gaugePositions;
+		Portal portal;
+
+		for (int i = 0; i < snapshot.size(); i++)
+		{
+			portal = snapshot.portals[i];
+
+			int dimensionIndex = dimensionPalette.computeIfAbsent(portal.getDimension(), dimension -> {
+				dimensionsTag.add(StringTag.valueOf(dimension.location().toString()));
+				return dimensionsTag.size() - 1;
+			});
+
+			int addressIndex = addressPalette.computeIfAbsent(portal.getAddress(), address -> {
+				addressesTag.add(address.serializeNBT());
+				return addressesTag.size() - 1;
+			});
+
+			info.add(dimensionIndex);
+			info.add(addressIndex);
+			info.add(packOrientation(portal));
+
+			corners.add(portal.getCorner1().getPos().asLong());
+			corners.add(portal.getCorner2().getPos().asLong());
+			corners.add(portal.getCorner3().getPos().asLong());
+			corners.add(portal.getCorner4().getPos().asLong());
+
+			gaugePositions = snapshot.gauges.get(i);
+			gaugeCounts.add(gaugePositions.size());
+
+			for (BlockPos pos : gaugePositions) gauges.add(pos.asLong());
+		}
+
+		nbt.put("dimensions", dimensionsTag);
+		nbt.put("addresses", addressesTag);
+		nbt.putIntArray("handles", snapshot.handles);
+		nbt.putIntArray("info", info.toIntArray());
+		nbt.putIntArray("power", snapshot.power);
+		nbt.putLongArray("corners", corners.toLongArray());
+		nbt.putIntArray("gaugeCounts", gaugeCounts.toIntArray());
+		nbt.putLongArray("gauges", gauges.toLongArray());
+	}
+
+	/**
+	 * Reads all portals from a NBT compound tag written by {@link #write(PortalSegmentSnapshot, CompoundTag)}.<br>
+	 * The portal records don't depend on each other, so larger segments are decoded in parallel
+	 * on the common fork-join pool. The consumer is always called on the calling thread, in the
+	 * order the portals were saved.
+	 */
+	static void read(CompoundTag nbt, PortalConsumer consumer)
+	{
+		ListTag dimensionsTag = nbt.getList("dimensions", Tag.TAG_STRING);
+		ListTag addressesTag = nbt.getList("addresses", Tag.TAG_COMPOUND);
+		List<ResourceKey<Level>> dimensions = new ArrayList<>(dimensionsTag.size());
+		List<Address> addresses = new ArrayList<>(addressesTag.size());
+
+		for (int i = 0; i < dimensionsTag.size(); i++)
+		{
+			dimensions.add(ResourceKey.create(Registry.DIMENSION_REGISTRY, new ResourceLocation(dimensionsTag.getString(i))));
+		}
+
+		for (int i = 0; i < addressesTag.size(); i++)
+		{
+			Address address = new Address();
+			address.deserializeNBT(addressesTag.getCompound(i));
+			addresses.add(AddressPool.intern(address));
+		}
+
+		int[] handles = nbt.getIntArray("handles");
+		int[] info = nbt.getIntArray("info");
+		int[] power = nbt.getIntArray("power");
+		long[] corners = nbt.getLongArray("corners");
+		int[] gaugeCounts = nbt.getIntArray("gaugeCounts");
+		long[] gauges = nbt.getLongArray("gauges");
+
+		// The start of the gauges of every portal, so the portals can be decoded independently.
+		// Damaged arrays are read as far as they go, the registry drops what's left incomplete.
+		int[] gaugeStarts = new int[handles.length];
+
+		for (int i = 1; i < handles.length; i++)
+		{
+			gaugeStarts[i] = (int)Math.min((long)gaugeStarts[i - 1] + getGaugeCount(gaugeCounts, i - 1), Integer.MAX_VALUE);
+		}
+
+		Portal[] portals = new Portal[handles.length];
+		List<List<BlockPos>> gaugePositions = new ArrayList<>(Collections.<List<BlockPos>>nCopies(handles.length, null));
+
+		IntStream indices = IntStream.range(0, handles.length);
+		if (handles.length >= PARALLEL_THRESHOLD) indices = indices.parallel();
+
+		indices.forEach(i -> {
+			portals[i] = decodePortal(i, info, corners, dimensions, addresses);
+			gaugePositions.set(i, decodeGauges(gaugeStarts[i], getGaugeCount(gaugeCounts, i), gauges));
+		});
+
+		for (int i = 0; i < handles.length; i++)
+		{
+			consumer.accept(portals[i], handles[i], (i < power.length) ? power[i] : 0, gaugePositions.get(i));
+		}
+	}
+
+	private static int getGaugeCount(int[] gaugeCounts, int i)
+	{
+		return (i < gaugeCounts.length) ? Math.max(gaugeCounts[i], 0) : 0;
+	}
+
+	private static Portal decodePortal(int i, int[] info, long[] corners, List<ResourceKey<Level>> dimensions, List<Address> addresses)
+	{
+		int c = i * 4;
+		if ((i + 1) * INFO_SIZE > info.length || c + 4 > corners.length) return null;
+
+		int orientation = info[i * INFO_SIZE + 2];
+		int dimension = info[i * INFO_SIZE];
+		int address = info[i * INFO_SIZE + 1];
+		if (dimension < 0 || dimension >= dimensions.size() || address < 0 || address >= addresses.size()) return null;
+
+		return new Portal(
+			dimensions.get(dimension),
+			addresses.get(address),
+			((orientation & 3) < Axis.values().length) ? Axis.values()[orientation & 3] : null,
+			new Corner(BlockPos.of(corners[c]), unpackFacing(orientation, 0), unpackFacing(orientation, 1)),
+			new Corner(BlockPos.of(corners[c + 1]), unpackFacing(orientation, 2), unpackFacing(orientation, 3)),
+			new Corner(BlockPos.of(corners[c + 2]), unpackFacing(orientation, 4), unpackFacing(orientation, 5)),
+			new Corner(BlockPos.of(corners[c + 3]), unpackFacing(orientation, 6), unpackFacing(orientation, 7)));
+	}
+
+	private static List<BlockPos> decodeGauges(int start, int count, long[] gauges)
+	{
+		int end = (int)Math.min((long)start + count, gauges.length);
+		List<BlockPos> positions = new ArrayList<>(Math.max(end - start, 0));
+
+		for (int g = start; g < end; g++)
+		{
+			positions.add(BlockPos.of(gauges[g]));
+		}
+
+		return positions;
+	}
+
+	/**
+	 * Packs the axis (2 bits) and all corner facings (3 bits each) of a portal into an int.
+	 */
+	private static int packOrientation(Portal portal)
+	{
+		Corner[] corners = { portal.getCorner1(), portal.getCorner2(), portal.getCorner3(), portal.getCorner4() };
+		int packed = portal.getAxis().ordinal();
+		int shift = 2;
+
+		for (Corner corner : corners)
+		{
+			packed |= corner.getFacingA().get3DDataValue() << shift;
+			shift += FACING_BITS;
+			packed |= corner.getFacingB().get3DDataValue() << shift;
+			shift += FACING_BITS;
+		}
+
+		return packed;
+	}
+
+	private static Direction unpackFacing(int orientation, int index)
+	{
+		return Direction.from3DDataValue((orientation >>> (2 + index * FACING_BITS)) & FACING_MASK);
+	}
+}
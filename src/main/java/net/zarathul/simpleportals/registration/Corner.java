@@ -5,23 +5,22 @@ import net.minecraft.core.Direction;
 import net.minecraft.nbt.CompoundTag;
 
 /**
- * Represents a corner of a portal.
+ * Represents a corner of a portal.<br>
+ * Corners are immutable. The hash code is calculated once on construction.
  */
 public class Corner
 {
-	private BlockPos pos;
-	private Direction facingA;
-	private Direction facingB;
-	
-	public Corner()
-	{
-	}
+	private final BlockPos pos;
+	private final Direction facingA;
+	private final Direction facingB;
+	private final int hash;
 	
 	public Corner(BlockPos pos, Direction facingA, Direction facingB)
 	{
-		this.pos = pos;
+		this.pos = (pos != null) ? pos.immutable() : null;
 		this.facingA = facingA;
 		this.facingB = facingB;
+		this.hash = calculateHashCode();
 	}
 	
 	/**
@@ -80,14 +79,22 @@ public class Corner
 		return tag;
 	}
 	
-	public void deserializeNBT(CompoundTag nbt)
+	/**
+	 * Creates a corner from the data written by {@link #serializeNBT()}.
+	 * 
+	 * @param nbt
+	 * The {@link CompoundTag} to read the corner from.
+	 * @return
+	 * The deserialized {@link Corner} or <code>null</code> if <code>nbt</code> was <code>null</code>.
+	 */
+	public static Corner deserializeNBT(CompoundTag nbt)
 	{
-		if (nbt == null) return;
+		if (nbt == null) return null;
 		
-		pos = BlockPos.of(nbt.getLong("pos"));
-
-		facingA = Direction.byName(nbt.getString("facingA"));
-		facingB = Direction.byName(nbt.getString("facingB"));
+		return new Corner(
+			BlockPos.of(nbt.getLong("pos")),
+			Direction.byName(nbt.getString("facingA")),
+			Direction.byName(nbt.getString("facingB")));
 	}
 	
 	@Override
@@ -98,11 +105,16 @@ public class Corner
 	
 	@Override
 	public int hashCode()
+	{
+		return hash;
+	}
+	
+	private int calculateHashCode()
 	{
 		final int prime = 31;
 		int result = 1;
-		result = prime * result + ((facingA == null) ? 0 : facingA.hashCode());
-		result = prime * result + ((facingB == null) ? 0 : facingB.hashCode());
+		// equals() ignores the order of the facings, so the hash has to as well.
+		result = prime * result + ((facingA == null) ? 0 : facingA.hashCode()) + ((facingB == null) ? 0 : facingB.hashCode());
 		result = prime * result + ((pos == null) ? 0 : pos.hashCode());
 		return result;
 	}
@@ -116,6 +128,8 @@ public class Corner
 		
 		Corner other = (Corner) obj;
 		
+		if (hash != other.hash) return false;
+		
 		if (pos == null)
 		{
 			if (other.pos != null) return false;
@@ -1,5 +1,8 @@
 package net.zarathul.simpleportals.registration;
 
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongLists;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
 import net.minecraft.core.Direction.Axis;
@@ -10,31 +13,40 @@ import net.minecraft.resources.ResourceKey;
 import net.minecraft.resources.ResourceLocation;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.level.Level;
+import net.minecraft.world.level.levelgen.structure.BoundingBox;
 import net.zarathul.simpleportals.blocks.BlockPortal;
 import net.zarathul.simpleportals.blocks.BlockPortalFrame;
 import net.zarathul.simpleportals.common.Utils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * Represents a portal.<br>
  * Note: Corner1 and Corner4 must be diagonal to each other,
- * same for Corner2 and Corner3.
+ * same for Corner2 and Corner3.<br>
+ * Portals are immutable. The hash code is calculated once on construction.
+ * The only mutable state is the handle the {@link PortalRegistry} assigns
+ * while the portal is registered. It is not part of equality.
  */
 public class Portal
 {
-	private ResourceKey<Level> dimension;
-	private Address address;
-	private Axis axis;
-	private Corner corner1;
-	private Corner corner2;
-	private Corner corner3;
-	private Corner corner4;
-
-	public Portal()
-	{
-	}
+	private final ResourceKey<Level> dimension;
+	private final Address address;
+	private final Axis axis;
+	private final Corner corner1;
+	private final Corner corner2;
+	private final Corner corner3;
+	private final Corner corner4;
+	private final BoundingBox bounds;
+	private final int hash;
+	private final List<Portal> asList = Collections.singletonList(this);
+	// Volatile, so the power of a portal can be read without the registry lock (see PortalRegistry.getPower()).
+	private volatile int handle = PortalHandles.NO_HANDLE;
+	// Computed on first use, most loaded portals never need their frame positions.
+	private volatile LongList packedFrame;
+	private volatile LongList packedFrameWithoutCorners;
 	
 	public Portal(ResourceKey<Level> dimension, Address address, Axis axis,
 				  Corner corner1, Corner corner2,
@@ -47,6 +59,8 @@ public class Portal
 		this.corner2 = corner2;
 		this.corner3 = corner3;
 		this.corner4 = corner4;
+		this.bounds = BoundingBox.fromCorners(corner1.getPos(), corner4.getPos());
+		this.hash = calculateHashCode();
 	}
 	
 	/**
@@ -126,6 +140,45 @@ public class Portal
 		return corner4;
 	}
 	
+	/**
+	 * Gets the box enclosing all blocks making up the portal (frame included).
+	 * 
+	 * @return
+	 * A {@link BoundingBox} or <code>null</code>.
+	 */
+	public BoundingBox getBounds()
+	{
+		return bounds;
+	}
+	
+	/**
+	 * Gets the handle assigned by the registry.
+	 * 
+	 * @return
+	 * The handle or <code>-1</code> if the portal is not registered.
+	 */
+	int getHandle()
+	{
+		return handle;
+	}
+	
+	void setHandle(int handle)
+	{
+		this.handle = handle;
+	}
+	
+	/**
+	 * Gets a read-only list containing only this portal. The list is created once per
+	 * portal, so registry lookups can return it without allocating.
+	 *
+	 * @return
+	 * A singleton list of this portal.
+	 */
+	List<Portal> asList()
+	{
+		return asList;
+	}
+
 	/**
 	 * Gets the positions of all blocks making up the portal.
 	 * 
@@ -161,7 +214,9 @@ public class Portal
 	
 	/**
 	 * Gets the positions of all blocks making up the portals frame.
-	 * Inclusion of corner address blocks is optional.
+	 * Inclusion of corner address blocks is optional.<br>
+	 * This creates a new list on every call, loops should use
+	 * {@link #getPackedFramePositions(boolean)} instead.
 	 * 
 	 * @param includeCorners
 	 * Determines if corner blocks should be included.
@@ -170,7 +225,50 @@ public class Portal
 	 */
 	public List<BlockPos> getFramePositions(boolean includeCorners)
 	{
-		ArrayList<BlockPos> frame = new ArrayList<>();
+		LongList packed = getPackedFramePositions(includeCorners);
+		List<BlockPos> frame = new ArrayList<>(packed.size());
+		
+		for (int i = 0; i < packed.size(); i++)
+		{
+			frame.add(BlockPos.of(packed.getLong(i)));
+		}
+		
+		return frame;
+	}
+	
+	/**
+	 * Gets the positions of all blocks making up the portals frame as packed longs
+	 * (see {@link BlockPos#asLong()}). The corners are the last 4 entries, if included.<br>
+	 * The positions are only computed once per portal, so iterating over them with a
+	 * {@link BlockPos.MutableBlockPos} does not allocate anything:
+	 * <pre>
+	 * for (int i = 0; i &lt; frame.size(); i++) world.getBlockState(pos.set(frame.getLong(i)));
+	 * </pre>
+	 * 
+	 * @param includeCorners
+	 * Determines if corner blocks should be included.
+	 * @return
+	 * A read-only list of packed positions.
+	 */
+	public LongList getPackedFramePositions(boolean includeCorners)
+	{
+		if (packedFrame == null)
+		{
+			// Computing the positions twice if two threads get here at once does no harm.
+			LongList frame = LongLists.unmodifiable(LongArrayList.wrap(computeFramePositions()));
+			packedFrameWithoutCorners = frame.subList(0, frame.size() - 4);
+			packedFrame = frame;
+		}
+		
+		return includeCorners ? packedFrame : packedFrameWithoutCorners;
+	}
+	
+	/**
+	 * Computes the packed positions of all blocks making up the portals frame, with the corners last.
+	 */
+	private long[] computeFramePositions()
+	{
+		LongArrayList frame = new LongArrayList();
 
 		// Get relative directions of the first and forth corners to their adjacent corners.
 		
@@ -196,24 +294,23 @@ public class Portal
 
 		// BlockPos.getAllInBox() delivers wrong results (duplicates and missing positions).
 		// So I have to do this nonsense. Minecraft 1.14.4 (10.10.2019)
-		for (BlockPos pos : BlockPos.betweenClosed(from1, to1)) frame.add(pos.immutable());
-		for (BlockPos pos : BlockPos.betweenClosed(from2, to2)) frame.add(pos.immutable());
-		for (BlockPos pos : BlockPos.betweenClosed(from3, to3)) frame.add(pos.immutable());
-		for (BlockPos pos : BlockPos.betweenClosed(from4, to4)) frame.add(pos.immutable());
+		for (BlockPos pos : BlockPos.betweenClosed(from1, to1)) frame.add(pos.asLong());
+		for (BlockPos pos : BlockPos.betweenClosed(from2, to2)) frame.add(pos.asLong());
+		for (BlockPos pos : BlockPos.betweenClosed(from3, to3)) frame.add(pos.asLong());
+		for (BlockPos pos : BlockPos.betweenClosed(from4, to4)) frame.add(pos.asLong());
 
-		if (includeCorners)
-		{
-			frame.add(corner1.getPos());
-			frame.add(corner2.getPos());
-			frame.add(corner3.getPos());
-			frame.add(corner4.getPos());
-		}
+		frame.add(corner1.getPos().asLong());
+		frame.add(corner2.getPos().asLong());
+		frame.add(corner3.getPos().asLong());
+		frame.add(corner4.getPos().asLong());
 		
-		return frame;
+		return frame.toLongArray();
 	}
 	
 	/**
 	 * Gets a possible spawn location for an entity of the specified height.
+	 * Found locations are cached until a block around the portal changes
+	 * (see {@link PortalDestinationCache}).
 	 * 
 	 * @param world
 	 * The {@link ServerLevel} the portal is located in.
@@ -226,20 +323,35 @@ public class Portal
 	{
 		if (world == null || entityHeight < 1) return null;
 		
+		return PortalDestinationCache.get(world, this, entityHeight);
+	}
+	
+	/**
+	 * Searches for a spawn location for an entity of the specified height, without
+	 * using the cache.
+	 * 
+	 * @param world
+	 * The {@link ServerLevel} the portal is located in.
+	 * @param entityHeight
+	 * The height of the entity the spawn point should be searched for.
+	 * @return
+	 * A {@link BlockPos} representing a possible spawn location or <code>null</code>.
+	 */
+	BlockPos findPortDestination(ServerLevel world, int entityHeight)
+	{
 		// Horizontal portal.
 		
 		if (axis == Axis.Y)
 		{
-			List<BlockPos> framePositions = getFramePositions();
-			
-			BlockPos spawnLocation;
+			LongList framePositions = getPackedFramePositions(true);
+			BlockPos.MutableBlockPos spawnLocation = new BlockPos.MutableBlockPos();
 			
 			// Check for valid spawn positions on top of the frame blocks.
 			
-			for (BlockPos framePos : framePositions)
+			for (int i = 0; i < framePositions.size(); i++)
 			{
-				spawnLocation = framePos.above();
-				if (canEntitySpawnAt(world, spawnLocation, entityHeight)) return spawnLocation;
+				spawnLocation.set(framePositions.getLong(i)).move(Direction.UP);
+				if (canEntitySpawnAt(world, spawnLocation, entityHeight)) return spawnLocation.immutable();
 			}
 			
 			// Check for valid spawn positions below the portal blocks starting at the center.
@@ -415,9 +527,12 @@ public class Portal
 	{
 		if (world == null) return false;
 		
-		for (BlockPos pos : getFramePositions(false))
+		LongList framePositions = getPackedFramePositions(false);
+		BlockPos.MutableBlockPos framePos = new BlockPos.MutableBlockPos();
+		
+		for (int i = 0; i < framePositions.size(); i++)
 		{
-			if (!(world.getBlockState(pos).getBlock() instanceof BlockPortalFrame)) return true;
+			if (!(world.getBlockState(framePos.set(framePositions.getLong(i))).getBlock() instanceof BlockPortalFrame)) return true;
 		}
 		
 		for (BlockPos pos : getPortalPositions())
@@ -442,33 +557,41 @@ public class Portal
 		return tag;
 	}
 	
-	public void deserializeNBT(CompoundTag nbt)
+	/**
+	 * Creates a portal from the data written by {@link #serializeNBT()}.
+	 * 
+	 * @param nbt
+	 * The {@link CompoundTag} to read the portal from.
+	 * @return
+	 * The deserialized {@link Portal} or <code>null</code> if <code>nbt</code> was <code>null</code>.
+	 */
+	public static Portal deserializeNBT(CompoundTag nbt)
 	{
-		if (nbt == null) return;
+		if (nbt == null) return null;
 
 		ResourceLocation dimensionLocation = new ResourceLocation(nbt.getString("dimension"));
-		dimension = ResourceKey.create(Registry.DIMENSION_REGISTRY, dimensionLocation);
+		ResourceKey<Level> dimension = ResourceKey.create(Registry.DIMENSION_REGISTRY, dimensionLocation);
 
-		address = new Address();
+		Address address = new Address();
 		address.deserializeNBT(nbt.getCompound("address"));
 		
-		axis = Axis.byName(nbt.getString("axis"));
-		
-		corner1 = new Corner();
-		corner1.deserializeNBT(nbt.getCompound("corner1"));
-		
-		corner2 = new Corner();
-		corner2.deserializeNBT(nbt.getCompound("corner2"));
-		
-		corner3 = new Corner();
-		corner3.deserializeNBT(nbt.getCompound("corner3"));
-		
-		corner4 = new Corner();
-		corner4.deserializeNBT(nbt.getCompound("corner4"));
+		return new Portal(
+			dimension,
+			AddressPool.intern(address),
+			Axis.byName(nbt.getString("axis")),
+			Corner.deserializeNBT(nbt.getCompound("corner1")),
+			Corner.deserializeNBT(nbt.getCompound("corner2")),
+			Corner.deserializeNBT(nbt.getCompound("corner3")),
+			Corner.deserializeNBT(nbt.getCompound("corner4")));
 	}
 	
 	@Override
 	public int hashCode()
+	{
+		return hash;
+	}
+	
+	private int calculateHashCode()
 	{
 		final int prime = 31;
 		int result = 1;
@@ -491,6 +614,8 @@ public class Portal
 		
 		Portal other = (Portal) obj;
 		
+		if (hash != other.hash) return false;
+		
 		if (dimension != other.dimension) return false;
 		
 		if (axis != other.axis) return false;
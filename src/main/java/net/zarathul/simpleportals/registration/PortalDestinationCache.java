@@ -0,0 +1,215 @@
+package net.zarathul.simpleportals.registration;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction.Axis;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.levelgen.structure.BoundingBox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the spawn positions found by {@link Portal#getPortDestination(ServerLevel, int)}
+ * per portal and entity height.<br>
+ * The search only looks at the blocks in a small volume around the portal (see
+ * {@link #getSearchVolume(Portal, int)}), so a result stays valid until one of those blocks
+ * changes. Block changes are reported by a mixin. The volumes are indexed by chunk, so
+ * changes away from portals cost a single map lookup. Entries of portals in chunks that
+ * get unloaded are dropped, nothing reports block changes in unloaded chunks. Entries of
+ * unregistered portals are dropped by the {@link PortalRegistry}.<br>
+ * All methods must be called on the server thread.
+ */
+public final class PortalDestinationCache
+{
+	private static final Map<Portal, Entry> entries = new HashMap<>();
+	private static final Map<ResourceKey<Level>, Long2ObjectOpenHashMap<List<Entry>>> entriesByChunk = new HashMap<>();
+
+	private static class Entry
+	{
+		final Portal portal;
+		// Spawn positions by entity height. Null values mean that no position was found.
+		final Int2ObjectOpenHashMap<BlockPos> destinations = new Int2ObjectOpenHashMap<>();
+		// The search volume of the tallest cached entity, it contains the volumes of all others.
+		BoundingBox volume;
+		int maxEntityHeight;
+
+		Entry(Portal portal)
+		{
+			this.portal = portal;
+		}
+	}
+
+	/**
+	 * Gets the spawn position of the specified portal for an entity of the specified height,
+	 * searching for it only if it is not cached yet.
+	 */
+	static BlockPos get(ServerLevel world, Portal portal, int entityHeight)
+	{
+		Entry entry = entries.get(portal);
+		if (entry != null && entry.destinations.containsKey(entityHeight)) return entry.destinations.get(entityHeight);
+
+		BlockPos destination = portal.findPortDestination(world, entityHeight);
+
+		if (entry == null)
+		{
+			entry = new Entry(portal);
+			entries.put(portal, entry);
+		}
+
+		if (entityHeight > entry.maxEntityHeight)
+		{
+			if (entry.volume != null) removeFromIndex(entry);
+
+			entry.maxEntityHeight = entityHeight;
+			entry.volume = getSearchVolume(portal, entityHeight);
+			addToIndex(entry);
+		}
+
+		entry.destinations.put(entityHeight, destination);
+
+		return destination;
+	}
+
+	/**
+	 * Called after a block changed. Drops the cached positions of all portals whose search
+	 * volume contains the block.
+	 *
+	 * @param world
+	 * The {@link ServerLevel} the block changed in.
+	 * @param pos
+	 * The position of the block.
+	 */
+	public static void onBlockChanged(ServerLevel world, BlockPos pos)
+	{
+		if (entries.isEmpty()) return;
+
+		List<Entry> candidates = getEntriesInChunk(world.dimension(), ChunkPos.asLong(pos.getX() >> 4, pos.getZ() >> 4));
+		if (candidates == null) return;
+
+		// Backwards, because removing an entry also removes it from this list.
+		for (int i = candidates.size() - 1; i >= 0; i--)
+		{
+			Entry entry = candidates.get(i);
+			if (entry.volume.isInside(pos)) remove(entry);
+		}
+	}
+
+	/**
+	 * Called when a chunk was unloaded. Drops the cached positions of all portals whose search
+	 * volume touches the chunk.
+	 *
+	 * @param world
+	 * The {@link ServerLevel} the chunk was unloaded in.
+	 * @param chunkPos
+	 * The {@link ChunkPos} of the unloaded chunk.
+	 */
+	public static void onChunkUnload(ServerLevel world, ChunkPos chunkPos)
+	{
+		if (entries.isEmpty()) return;
+
+		List<Entry> candidates = getEntriesInChunk(world.dimension(), chunkPos.toLong());
+		if (candidates == null) return;
+
+		for (Entry entry : new ArrayList<>(candidates)) remove(entry);
+	}
+
+	/**
+	 * Drops the cached positions of the specified portal. Called when the portal gets unregistered.
+	 */
+	static void remove(Portal portal)
+	{
+		Entry entry = entries.get(portal);
+		if (entry != null) remove(entry);
+	}
+
+	/**
+	 * Drops the cached positions of all portals in the specified dimension.
+	 */
+	static void clear(ResourceKey<Level> dimension)
+	{
+		if (entriesByChunk.remove(dimension) != null) entries.keySet().removeIf(portal -> portal.getDimension() == dimension);
+	}
+
+	/**
+	 * Drops all cached positions.
+	 */
+	static void clear()
+	{
+		entries.clear();
+		entriesByChunk.clear();
+	}
+
+	/**
+	 * Gets the volume {@link Portal#findPortDestination(ServerLevel, int)} looks at. For
+	 * horizontal portals that is the space above the frame and below the portal, for
+	 * vertical portals the space on both sides of the portal.
+	 */
+	private static BoundingBox getSearchVolume(Portal portal, int entityHeight)
+	{
+		BoundingBox bounds = portal.getBounds();
+
+		if (portal.getAxis() == Axis.Y)
+		{
+			return new BoundingBox(bounds.minX(), bounds.minY() - entityHeight, bounds.minZ(), bounds.maxX(), bounds.maxY() + entityHeight, bounds.maxZ());
+		}
+
+		int x = (portal.getAxis() == Axis.X) ? 1 : 0;
+		int z = (portal.getAxis() == Axis.Z) ? 1 : 0;
+
+		return new BoundingBox(bounds.minX() - x, bounds.minY(), bounds.minZ() - z, bounds.maxX() + x, bounds.maxY(), bounds.maxZ() + z);
+	}
+
+	private static List<Entry> getEntriesInChunk(ResourceKey<Level> dimension, long chunk)
+	{
+		Long2ObjectOpenHashMap<List<Entry>> chunks = entriesByChunk.get(dimension);
+
+		return (chunks != null) ? chunks.get(chunk) : null;
+	}
+
+	private static void remove(Entry entry)
+	{
+		entries.remove(entry.portal);
+		if (entry.volume != null) removeFromIndex(entry);
+	}
+
+	private static void addToIndex(Entry entry)
+	{
+		Long2ObjectOpenHashMap<List<Entry>> chunks = entriesByChunk.computeIfAbsent(entry.portal.getDimension(), dimension -> new Long2ObjectOpenHashMap<>());
+
+		for (int chunkX = entry.volume.minX() >> 4; chunkX <= entry.volume.maxX() >> 4; chunkX++)
+		{
+			for (int chunkZ = entry.volume.minZ() >> 4; chunkZ <= entry.volume.maxZ() >> 4; chunkZ++)
+			{
+				chunks.computeIfAbsent(ChunkPos.asLong(chunkX, chunkZ), chunk -> new ArrayList<>(1)).add(entry);
+			}
+		}
+	}
+
+	private static void removeFromIndex(Entry entry)
+	{
+		Long2ObjectOpenHashMap<List<Entry>> chunks = entriesByChunk.get(entry.portal.getDimension());
+		if (chunks == null) return;
+
+		for (int chunkX = entry.volume.minX() >> 4; chunkX <= entry.volume.maxX() >> 4; chunkX++)
+		{
+			for (int chunkZ = entry.volume.minZ() >> 4; chunkZ <= entry.volume.maxZ() >> 4; chunkZ++)
+			{
+				long chunk = ChunkPos.asLong(chunkX, chunkZ);
+				List<Entry> chunkEntries = chunks.get(chunk);
+				if (chunkEntries == null) continue;
+
+				chunkEntries.remove(entry);
+				if (chunkEntries.isEmpty()) chunks.remove(chunk);
+			}
+		}
+
+		if (chunks.isEmpty()) entriesByChunk.remove(entry.portal.getDimension());
+	}
+}
@@ -0,0 +1,233 @@
+package net.zarathul.simpleportals.registration;
+
+import com.google.common.collect.ImmutableList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import net.minecraft.core.BlockPos;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Assigns small integer handles to registered portals and stores per portal state
+ * in arrays indexed by those handles.<br>
+ * Handles of unregistered portals are put on a free-list and reused, so the arrays stay
+ * dense. Reading or writing the power of a portal is a single array access without boxing
+ * or hashing the portal.<br>
+ * Power is kept in an {@link AtomicIntegerArray}, so it can be read without holding the
+ * registry lock (see {@link #readPower(Portal)}). Everything else must only be accessed
+ * while holding the lock.
+ */
+final class PortalHandles
+{
+	static final int NO_HANDLE = -1;
+	private static final int INITIAL_CAPACITY = 64;
+
+	private Portal[] portals;
+	private volatile AtomicIntegerArray power;
+	private Object[] gauges;
+	private final IntArrayList freeHandles;
+	private int highWaterMark;
+	private int count;
+
+	PortalHandles()
+	{
+		portals = new Portal[INITIAL_CAPACITY];
+		power = new AtomicIntegerArray(INITIAL_CAPACITY);
+		gauges = new Object[INITIAL_CAPACITY];
+		freeHandles = new IntArrayList();
+	}
+
+	/**
+	 * Assigns a handle to the specified portal.
+	 *
+	 * @param portal
+	 * The {@link Portal} to assign a handle to.
+	 * @return
+	 * The new handle.
+	 */
+	int allocate(Portal portal)
+	{
+		int handle = NO_HANDLE;
+
+		// Handles taken by allocate(Portal, int) stay on the free-list, they get skipped here.
+		while (!freeHandles.isEmpty() && handle == NO_HANDLE)
+		{
+			handle = freeHandles.popInt();
+			if (portals[handle] != null) handle = NO_HANDLE;
+		}
+
+		if (handle == NO_HANDLE)
+		{
+			if (highWaterMark == portals.length) grow();
+			handle = highWaterMark++;
+		}
+
+		portals[handle] = portal;
+		power.set(handle, 0);
+		gauges[handle] = ImmutableList.of();
+		portal.setHandle(handle);
+		count++;
+
+		return handle;
+	}
+
+	/**
+	 * Assigns a specific handle to the specified portal. Used when loading saved data,
+	 * so portals keep their handles. Falls back to a new handle if the requested one
+	 * is already assigned.<br>
+	 * Searching the free-list would make loading quadratic, so a free handle below the high
+	 * water mark is just taken and its free-list entry is skipped later.
+	 *
+	 * @param portal
+	 * The {@link Portal} to assign a handle to.
+	 * @param handle
+	 * The requested handle.
+	 * @return
+	 * The assigned handle.
+	 */
+	int allocate(Portal portal, int handle)
+	{
+		if (handle < 0 || isValid(handle)) return allocate(portal);
+
+		if (handle >= highWaterMark)
+		{
+			while (handle >= portals.length) grow();
+
+			// Everything skipped over is free.
+			for (int skipped = highWaterMark; skipped < handle; skipped++) freeHandles.push(skipped);
+
+			highWaterMark = handle + 1;
+		}
+
+		portals[handle] = portal;
+		power.set(handle, 0);
+		gauges[handle] = ImmutableList.of();
+		portal.setHandle(handle);
+		count++;
+
+		return handle;
+	}
+
+	/**
+	 * Releases the specified handle for reuse.
+	 *
+	 * @param handle
+	 * The handle to release.
+	 */
+	void release(int handle)
+	{
+		if (!isValid(handle)) return;
+
+		portals[handle].setHandle(NO_HANDLE);
+		portals[handle] = null;
+		power.set(handle, 0);
+		gauges[handle] = null;
+		freeHandles.push(handle);
+		count--;
+	}
+
+	/**
+	 * Determines if the specified handle is currently assigned to a portal.
+	 */
+	boolean isValid(int handle)
+	{
+		return (handle >= 0 && handle < highWaterMark && portals[handle] != null);
+	}
+
+	Portal getPortal(int handle)
+	{
+		return (handle >= 0 && handle < highWaterMark) ? portals[handle] : null;
+	}
+
+	int getPower(int handle)
+	{
+		return power.get(handle);
+	}
+
+	void setPower(int handle, int amount)
+	{
+		power.set(handle, amount);
+	}
+
+	/**
+	 * Reads the power of the specified portal without holding the registry lock.<br>
+	 * The handle of the portal is read before and after the power. Releasing a handle resets
+	 * it before the power gets touched, so if the handle didn't change, the power read still
+	 * belonged to the portal.
+	 *
+	 * @param portal
+	 * The {@link Portal} to read the power of.
+	 * @return
+	 * The power of the portal or <code>-1</code> if the portal is not registered or its
+	 * handle changed while reading.
+	 */
+	int readPower(Portal portal)
+	{
+		int handle = portal.getHandle();
+		if (handle == NO_HANDLE) return -1;
+
+		AtomicIntegerArray current = power;
+		if (handle >= current.length()) return -1;
+
+		int amount = current.get(handle);
+
+		return (portal.getHandle() == handle) ? amount : -1;
+	}
+
+	@SuppressWarnings("unchecked")
+	List<BlockPos> getGauges(int handle)
+	{
+		return (List<BlockPos>)gauges[handle];
+	}
+
+	void setGauges(int handle, List<BlockPos> positions)
+	{
+		gauges[handle] = ImmutableList.copyOf(positions);
+	}
+
+	/**
+	 * Gets the number of assigned handles.
+	 */
+	int size()
+	{
+		return count;
+	}
+
+	/**
+	 * Gets the upper bound (exclusive) of all handles ever assigned since the last clear.
+	 * Iterating from <code>0</code> to this value and skipping unassigned handles visits
+	 * every registered portal.
+	 */
+	int getHighWaterMark()
+	{
+		return highWaterMark;
+	}
+
+	void clear()
+	{
+		for (int handle = 0; handle < highWaterMark; handle++)
+		{
+			if (portals[handle] != null) portals[handle].setHandle(NO_HANDLE);
+		}
+
+		Arrays.fill(portals, null);
+		power = new AtomicIntegerArray(portals.length);
+		Arrays.fill(gauges, null);
+		freeHandles.clear();
+		highWaterMark = 0;
+		count = 0;
+	}
+
+	private void grow()
+	{
+		int capacity = portals.length * 2;
+
+		portals = Arrays.copyOf(portals, capacity);
+		AtomicIntegerArray grown = new AtomicIntegerArray(capacity);
+		for (int handle = 0; handle < highWaterMark; handle++) grown.set(handle, power.get(handle));
+
+		power = grown;
+		gauges = Arrays.copyOf(gauges, capacity);
+	}
+}
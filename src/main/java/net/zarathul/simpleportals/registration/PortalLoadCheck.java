@@ -0,0 +1,227 @@
+package net.zarathul.simpleportals.registration;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction.Axis;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.levelgen.structure.BoundingBox;
+import net.zarathul.simpleportals.Settings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Validates portals while the registry loads them, so corrupt save data gets fixed once
+ * instead of failing later whenever the portals are used.<br>
+ * Every check only looks at the portal itself, so a whole dimension is checked in a single
+ * pass over the loaded portals. Portals with missing data or impossible geometry are
+ * dropped, saved handles far beyond the assigned ones are replaced, power gauges that are
+ * not part of the portals frame are removed and negative power is reset. Duplicates are
+ * detected by the registry, because only it knows which portals are already registered.
+ */
+final class PortalLoadCheck
+{
+	// How far a saved handle may be above the highest assigned handle. Portals of dimensions that
+	// are loaded later legitimately leave gaps, but every skipped handle costs memory.
+	private static final int MAX_HANDLE_GAP = PortalRegistry.SAVE_SEGMENT_SIZE * 64;
+
+	private int loaded;
+	private int invalidPortals;
+	private int duplicatePortals;
+	private int invalidHandles;
+	private int invalidGauges;
+	private int invalidPower;
+
+	/**
+	 * Determines if the specified portal is complete and its corners form a valid frame that is
+	 * not larger than {@link Settings#maxSize}, the same limit that applies when portals get
+	 * activated. Counts the portal as dropped if it isn't.
+	 */
+	boolean isValid(Portal portal)
+	{
+		if (portal == null || portal.getDimension() == null || portal.getAddress() == null || portal.getAxis() == null
+			|| !isValid(portal.getCorner1()) || !isValid(portal.getCorner2()) || !isValid(portal.getCorner3()) || !isValid(portal.getCorner4()))
+		{
+			invalidPortals++;
+			return false;
+		}
+
+		BlockPos pos1 = portal.getCorner1().getPos();
+		BlockPos span2 = portal.getCorner2().getPos().subtract(pos1);
+		BlockPos span3 = portal.getCorner3().getPos().subtract(pos1);
+		Axis axis2 = getSpanAxis(span2);
+		Axis axis3 = getSpanAxis(span3);
+
+		// Corners 2 and 3 are adjacent to corner 1 along different axes, corner 4 is opposite
+		// to it and there has to be room for at least one portal block in between. The size
+		// includes the frame, like the size check in PortalRegistry.activatePortal().
+		boolean isValid = (axis2 != null && axis3 != null && axis2 != axis3
+			&& Math.abs(span2.get(axis2)) >= 2 && Math.abs(span3.get(axis3)) >= 2
+			&& Math.abs(span2.get(axis2)) + 1 <= Settings.maxSize && Math.abs(span3.get(axis3)) + 1 <= Settings.maxSize
+			&& portal.getCorner4().getPos().equals(pos1.offset(span2).offset(span3))
+			&& (portal.getAxis() == Axis.Y) == (axis2 != Axis.Y && axis3 != Axis.Y));
+
+		if (!isValid) invalidPortals++;
+
+		return isValid;
+	}
+
+	/**
+	 * Counts a portal that was dropped because it is already registered.
+	 */
+	void addDuplicate()
+	{
+		duplicatePortals++;
+	}
+
+	/**
+	 * Counts a portal that was added to the registry.
+	 */
+	void addLoaded()
+	{
+		loaded++;
+	}
+
+	/**
+	 * Checks a handle read from saved data. Handles that are negative or too far above the
+	 * highest assigned handle are replaced with {@link PortalHandles#NO_HANDLE}, so the portal
+	 * gets a new handle instead.
+	 *
+	 * @param savedHandle
+	 * The saved handle or {@link PortalHandles#NO_HANDLE} if none was saved.
+	 * @param highWaterMark
+	 * The upper bound (exclusive) of the currently assigned handles.
+	 */
+	int checkHandle(int savedHandle, int highWaterMark)
+	{
+		if (savedHandle == PortalHandles.NO_HANDLE) return savedHandle;
+		if (savedHandle >= 0 && savedHandle - highWaterMark < MAX_HANDLE_GAP) return savedHandle;
+
+		invalidHandles++;
+
+		return PortalHandles.NO_HANDLE;
+	}
+
+	/**
+	 * Removes duplicates and all positions that are not part of the frame of the specified
+	 * portal from a list of power gauge positions.
+	 *
+	 * @return
+	 * The passed in list if all positions were valid, otherwise a new list.
+	 */
+	List<BlockPos> checkGauges(Portal portal, List<BlockPos> gauges)
+	{
+		if (gauges == null) return Collections.emptyList();
+
+		List<BlockPos> validGauges = null;
+		BlockPos pos;
+
+		for (int i = 0; i < gauges.size(); i++)
+		{
+			pos = gauges.get(i);
+			boolean isValid = (pos != null && isOnFrame(portal, pos) && (validGauges != null ? !validGauges.contains(pos) : gauges.indexOf(pos) == i));
+
+			if (isValid)
+			{
+				if (validGauges != null) validGauges.add(pos);
+			}
+			else
+			{
+				invalidGauges++;
+
+				if (validGauges == null)
+				{
+					// Only copy once the first invalid entry shows up.
+					validGauges = new ArrayList<>(gauges.size());
+					validGauges.addAll(gauges.subList(0, i));
+				}
+			}
+		}
+
+		return (validGauges != null) ? validGauges : gauges;
+	}
+
+	/**
+	 * Resets negative power to <code>0</code>.
+	 */
+	int checkPower(int power)
+	{
+		if (power >= 0) return power;
+
+		invalidPower++;
+
+		return 0;
+	}
+
+	/**
+	 * Determines if any saved data had to be dropped or changed.
+	 */
+	boolean hasRepairs()
+	{
+		return (invalidPortals + duplicatePortals + invalidHandles + invalidGauges + invalidPower) > 0;
+	}
+
+	/**
+	 * Gets a one line summary of the check.
+	 */
+	String getSummary(ResourceKey<Level> dimension)
+	{
+		String summary = String.format("Loaded %d portals for %s.", loaded, dimension.location());
+
+		if (!hasRepairs()) return summary;
+
+		return summary + String.format(" Repaired the saved data: dropped %d invalid and %d duplicate portals, replaced %d invalid handles, removed %d invalid power gauges, reset %d negative power values.",
+			invalidPortals, duplicatePortals, invalidHandles, invalidGauges, invalidPower);
+	}
+
+	private static boolean isValid(Corner corner)
+	{
+		return (corner != null && corner.getPos() != null && corner.getFacingA() != null && corner.getFacingB() != null);
+	}
+
+	/**
+	 * Gets the only axis along which the specified offset is not <code>0</code>.
+	 *
+	 * @return
+	 * The {@link Axis} or <code>null</code> if the offset is along more or less than one axis.
+	 */
+	private static Axis getSpanAxis(BlockPos span)
+	{
+		Axis spanAxis = null;
+
+		for (Axis axis : Axis.values())
+		{
+			if (span.get(axis) == 0) continue;
+			if (spanAxis != null) return null;
+
+			spanAxis = axis;
+		}
+
+		return spanAxis;
+	}
+
+	/**
+	 * Determines if the specified position is part of the portals frame, without the corners.
+	 * Frame positions are on the border of the portal along exactly one of its two spanning
+	 * axes; positions on both borders are corners.
+	 */
+	private static boolean isOnFrame(Portal portal, BlockPos pos)
+	{
+		BoundingBox bounds = portal.getBounds();
+		if (!bounds.isInside(pos)) return false;
+
+		int borders = 0;
+
+		for (Axis axis : Axis.values())
+		{
+			int min = axis.choose(bounds.minX(), bounds.minY(), bounds.minZ());
+			int max = axis.choose(bounds.maxX(), bounds.maxY(), bounds.maxZ());
+
+			// The axis the portal is flat along does not count.
+			if (min != max && (pos.get(axis) == min || pos.get(axis) == max)) borders++;
+		}
+
+		return (borders == 1);
+	}
+}
@@ -1,754 +1,2007 @@
-package net.zarathul.simpleportals.registration;
-
-import com.google.common.collect.*;
-import net.minecraft.core.BlockPos;
-import net.minecraft.core.Direction;
-import net.minecraft.core.Direction.Axis;
-import net.minecraft.core.Registry;
-import net.minecraft.nbt.CompoundTag;
-import net.minecraft.resources.ResourceKey;
-import net.minecraft.server.level.ServerLevel;
-import net.minecraft.world.level.Level;
-import net.minecraft.world.level.block.Block;
-import net.minecraft.world.level.block.state.BlockState;
-import net.zarathul.simpleportals.Settings;
-import net.zarathul.simpleportals.SimplePortals;
-import net.zarathul.simpleportals.blocks.BlockPortal;
-import net.zarathul.simpleportals.common.Utils;
-
-import java.util.*;
-import java.util.stream.Collectors;
-
-/**
- * The central registration for all portals.
- */
-public final class PortalRegistry
-{
-	private static final ImmutableMap<Direction,Direction[]> cornerSearchDirs;
-	private static final ListMultimap<BlockPos, Portal> portals;
-	private static final ListMultimap<Address, Portal> addresses;
-	private static final ListMultimap<Portal, BlockPos> gauges;
-	private static final HashMap<Portal, Integer> power;
-	
-	static
-	{
-		EnumMap<Direction,Direction[]> temp = Maps.newEnumMap(Direction.class);
-		temp.put(Direction.DOWN, new Direction[] { Direction.SOUTH, Direction.EAST });
-		temp.put(Direction.UP, new Direction[] { Direction.SOUTH, Direction.EAST });
-		temp.put(Direction.NORTH, new Direction[] { Direction.DOWN, Direction.EAST });
-		temp.put(Direction.SOUTH, new Direction[] { Direction.DOWN, Direction.EAST });
-		temp.put(Direction.WEST, new Direction[] { Direction.DOWN, Direction.SOUTH });
-		temp.put(Direction.EAST, new Direction[] { Direction.DOWN, Direction.SOUTH });
-		cornerSearchDirs = Maps.immutableEnumMap(temp);
-		
-		portals = ArrayListMultimap.create();
-		addresses = ArrayListMultimap.create();
-		gauges = ArrayListMultimap.create();
-		power = Maps.newHashMap();
-	}
-
-	/**
-	 * :WARNING: Completely clears the registry. :WARNING:
-	 * This does not deactivate any portals, meaning no portals blocks will get removed.
-	 */
-	public static void clear()
-	{
-		portals.clear();
-		addresses.clear();
-		gauges.clear();
-		power.clear();
-
-		SimplePortals.portalSaveData.setDirty();
-	}
-	
-	/**
-	 * Activate a portal at the specified position.
-	 * @param world
-	 * The {@link ServerLevel} the portal is located in.
-	 * @param pos
-	 * The {@link BlockPos} of the portal frame.
-	 * @param side
-	 * The {@link Direction} representing the side of the portal frame that was hit
-	 * by the portal activator.
-	 * @return
-	 * <code>true</code> if a portal could be activated, otherwise <code>false</code>.
-	 */
-	public static boolean activatePortal(ServerLevel world, BlockPos pos, Direction side)
-	{
-		if (world == null || pos == null || side == null) return false;
-		
-		Corner corner1 = null;
-		Corner corner2;
-		Corner corner3;
-		Corner corner4;
-		Direction firstSearchDir = null;
-		
-		// Find corners
-		
-		for (Direction searchDir : cornerSearchDirs.get(side))
-		{
-			corner1 = findCorner(world, pos, searchDir, side);
-			
-			if (corner1 != null)
-			{
-				firstSearchDir = searchDir;
-
-				break;
-			}
-		}
-		
-		if (corner1 == null) return false;
-		
-		corner2 = findCorner(world, pos, firstSearchDir.getOpposite(), side);
-		
-		if (corner2 == null) return false;
-		
-		corner3 = findCorner(world, corner1.getPos().offset(side.getNormal()), side, firstSearchDir.getOpposite());
-		
-		if (corner3 == null) return false;
-		
-		corner4 = findCorner(world, corner3.getPos().offset(firstSearchDir.getOpposite().getNormal()), firstSearchDir.getOpposite(), side.getOpposite());
-		
-		if (corner4 == null || !corner4.equals(findCorner(world, corner2.getPos().offset(side.getNormal()), side, firstSearchDir))) return false;
-		
-		// Check size
-		
-		if (getDistance(corner1.getPos(), corner2.getPos()) > Settings.maxSize
-			|| getDistance(corner1.getPos(), corner3.getPos()) > Settings.maxSize) return false;
-		
-		// Check address blocks validity
-		
-		BlockState addBlock1 = world.getBlockState(corner1.getPos());
-		
-		if (!isValidAddressBlock(addBlock1)) return false;
-		
-		BlockState addBlock2 = world.getBlockState(corner2.getPos());
-		
-		if (!isValidAddressBlock(addBlock2)) return false;
-		
-		BlockState addBlock3 = world.getBlockState(corner3.getPos());
-		
-		if (!isValidAddressBlock(addBlock3)) return false;
-		
-		BlockState addBlock4 = world.getBlockState(corner4.getPos());
-		
-		if (!isValidAddressBlock(addBlock4)) return false;
-		
-		// Determine portal axis
-		
-		int corner1Y = corner1.getPos().getY();
-		
-		boolean isHorizontal = (corner1Y == corner2.getPos().getY()
-			&& corner1Y == corner3.getPos().getY()
-			&& corner1Y == corner4.getPos().getY());
-		
-		// Only relevant for vertical portals.
-		Axis horizontalCornerFacing = (corner1.getFacingA().getAxis() != Axis.Y)
-			? corner1.getFacingA().getAxis()
-			: corner1.getFacingB().getAxis();
-		
-		Axis portalAxis = isHorizontal
-			? Axis.Y
-			: Utils.getOrthogonalTo(horizontalCornerFacing);
-		
-		// Create portal data structure
-		
-		Address address = new Address(
-			getAddressBlockId(addBlock1.getBlock()),
-			getAddressBlockId(addBlock2.getBlock()),
-			getAddressBlockId(addBlock3.getBlock()),
-			getAddressBlockId(addBlock4.getBlock()));
-
-		Portal portal = new Portal(world.dimension(), address, portalAxis, corner1, corner2, corner3, corner4);
-		
-		Iterable<BlockPos> portalPositions = portal.getPortalPositions();
-		
-		// Ensure that the inside of the frame only contains air blocks
-		
-		for (BlockPos checkPos : portalPositions)
-		{
-			if (!world.isEmptyBlock(checkPos)) return false;
-		}
-		
-		// Place portal blocks
-		
-		for (BlockPos portalPos : portalPositions)
-		{
-			world.setBlock(portalPos, SimplePortals.blockPortal.defaultBlockState().setValue(BlockPortal.AXIS, portalAxis), Utils.SetBlockFlags.FULL_UPDATE);
-		}
-		
-		// Find power gauges in the frame
-		
-		List<BlockPos> powerGauges = new ArrayList<>();
-		
-		for (BlockPos framePos : portal.getFramePositions(false))
-		{
-			if (world.getBlockState(framePos).getBlock() == SimplePortals.blockPowerGauge)
-			{
-				powerGauges.add(framePos);
-			}
-		}
-		
-		// Register portal
-		
-		register(world, portal, powerGauges);
-		
-		return true;
-	}
-	
-	/**
-	 * Deactivate the portal at the specified position.<br>
-	 * If multiple portals share the same portal frame block,
-	 * all those portals get deactivated.
-	 * 
-	 * @param world
-	 * The {@link ServerLevel} the portal is located in.
-	 * @param pos
-	 * The {@link BlockPos} of one of the portals blocks (portal or frame).
-	 */
-	public static void deactivatePortal(ServerLevel world, BlockPos pos)
-	{
-		if (world == null || pos == null) return;
-		
-		// Copying of the list is required because unregister() changes it.
-		List<Portal> affectedPortals = new ArrayList<>(portals.get(pos));
-		
-		// Unregister all affected portals first to avoid unnecessary deactivatePortal()
-		// calls that would otherwise be caused by the destruction of the portal blocks.
-		for (Portal portal : affectedPortals) unregister(world, portal);
-		for (Portal portal : affectedPortals) destroyPortalBlocks(world, portal);
-	}
-	
-	/**
-	 * Determines if there is a portal at the specified position in the 
-	 * specified dimension.
-	 * 
-	 * @param pos
-	 * The {@link BlockPos} of a portal or frame block.
-	 * @param dimension
-	 * The dimension the portal is supposed to be in.
-	 * @return
-	 * <code>true</code> if the block at the specified position is part of 
-	 * a registered portal, otherwise <code>false</code>.
-	 */
-	public static boolean isPortalAt(BlockPos pos, ResourceKey<Level> dimension)
-	{
-		List<Portal> portals = getPortalsAt(pos, dimension);
-		
-		return (portals != null) && (portals.size() > 0);
-	}
-
-	/**
-	 * Gets all registered portals and their positions.
-	 *
- 	 * @return
-	 * An immutable map containing all portals and their positions.
-	 */
-	public static ImmutableListMultimap<BlockPos, Portal> getPortals()
-	{
-		return ImmutableListMultimap.copyOf(portals);
-	}
-
-	/**
-	 * Gets all registered portals and their addresses.
-	 *
-	 * @return
-	 * An immutable map containing all portals and their addresses.
-	 */
-	public static ImmutableListMultimap<Address, Portal> getAddresses()
-	{
-		return ImmutableListMultimap.copyOf(addresses);
-	}
-
-	/**
-	 * Gets the portals registered at the specified position in the
-	 * specified dimension.
-	 * 
-	 * @param pos
-	 * The {@link BlockPos} of a portal or frame block.
-	 * @param dimension
-	 * The dimension the portals should be in.
-	 * @return
-	 * A read-only list of found portals (may be empty) or <code>null</code> if
-	 * <code>pos</code> was <code>null</code>.
-	 */
-	public static List<Portal> getPortalsAt(BlockPos pos, ResourceKey<Level> dimension)
-	{
-		if (pos == null) return null;
-		
-		List<Portal> foundPortals = portals.get(pos).stream().filter(portal -> portal.getDimension() == dimension).collect(Collectors.toList());
-		
-		return Collections.unmodifiableList(foundPortals);
-	}
-
-	/**
-	 * Gets all the portals registered in the specified dimension.
-	 *
-	 * @param dimension
-	 * The dimension the portals should be in.
-	 * @return
-	 * A read-only list of found portals (may be empty).
-	 */
-	public static List<Portal> getPortalsInDimension(ResourceKey<Level> dimension)
-	{
-		Set<Portal> uniquePortals = new HashSet<>(portals.values());
-
-		return uniquePortals.stream().filter(portal -> portal.getDimension() == dimension).toList();
-	}
-
-	/**
-	 * Gets all portals with the specified address.
-	 * 
-	 * @param address
-	 * An portal {@link Address}.
-	 * @return
-	 * A read-only list of found portals (may be empty) or <code>null</code> if
-	 * <code>address</code> was <code>null</code>.
-	 */
-	public static List<Portal> getPortalsWithAddress(Address address)
-	{
-		if (address == null) return null;
-		
-		List<Portal> foundPortals = new ArrayList<>(addresses.get(address));
-		
-		return Collections.unmodifiableList(foundPortals);
-	}
-
-	/**
-	 * Gets all portals in every dimension.
-	 *
-	 * @return
-	 * A read-only list of all portals (may be empty).
-	 */
-	public static List<Portal> getAllPortals()
-	{
-		Set<Portal> uniquePortals = new HashSet<>(portals.values());
-
-		return new ArrayList<>(uniquePortals);
-	}
-
-	/**
-	 * Gets the positions of all power gauges for the specified portal.
-	 * 
-	 * @param portal
-	 * The {@link Portal} to get the power gauges for.
-	 * @return
-	 * A read-only list of {@link BlockPos} (may be empty) or <code>null</code> if
-	 * <code>portal</code> was <code>null</code>.
-	 */
-	public static List<BlockPos> getPowerGauges(Portal portal)
-	{
-		if (portal == null) return null;
-		
-		List<BlockPos> foundGauges = new ArrayList<>(gauges.get(portal));
-		
-		return Collections.unmodifiableList(foundGauges);
-	}
-	
-	/**
-	 * Adds the specified amount of power to the specified portal.
-	 * 
-	 * @param portal
-	 * The {@link Portal} to which the power should be added.
-	 * @param amount
-	 * The amount of power to add.
-	 * @return
-	 * The surplus power that could not be added to the portal.
-	 */
-	public static int addPower(Portal portal, int amount)
-	{
-		if (portal == null || amount < 1) return amount;
-		
-		int oldAmount = getPower(portal);
-		int freeCapacity = Math.max(Settings.powerCapacity - oldAmount, 0);
-		int amountToAdd = Math.min(freeCapacity, amount);
-		int surplus = amount - amountToAdd;
-		
-		power.put(portal, oldAmount + amountToAdd);
-		
-		// Trigger save of portal data
-		
-		SimplePortals.portalSaveData.setDirty();
-		
-		return surplus;
-	}
-	
-	/**
-	 * Removes the specified amount of power from the specified portal.<br>
-	 * Only ever removes power if the portal contains enough. 
-	 * 
-	 * @param portal
-	 * The {@link Portal} from which the power should be removed.
-	 * @param amount
-	 * The amount of power to remove.
-	 * @return
-	 * <code>true</code> if the amount could be removed, otherwise <code>false</code>.
-	 */
-	public static boolean removePower(Portal portal, int amount)
-	{
-		if (portal == null || amount < 1) return false;
-		
-		int oldAmount = getPower(portal);
-		
-		if (oldAmount < amount) return false;
-		
-		power.put(portal, oldAmount - amount);
-		
-		// Trigger save of portal data
-		
-		SimplePortals.portalSaveData.setDirty();
-		
-		return true;
-	}
-	
-	/**
-	 * Gets the specified portals power.
-	 * 
-	 * @param portal
-	 * The {@link Portal} to get the power for.
-	 * @return
-	 * The portals power or <code>0</code>.
-	 */
-	public static int getPower(Portal portal)
-	{
-		return (portal != null) ? power.get(portal) : 0;
-	}
-	
-	/**
-	 * Triggers comparator update for all power gauge of the specified portal.
-	 * 
-	 * @param world
-	 * The {@link ServerLevel} the portal is located in.
-	 * @param portal
-	 * The {@link Portal}.
-	 */
-	public static void updatePowerGauges(ServerLevel world, Portal portal)
-	{
-		if (world == null | portal == null) return;
-		
-		List<BlockPos> gaugePositions = getPowerGauges(portal);
-		
-		for (BlockPos pos : gaugePositions)
-		{
-			world.updateNeighbourForOutputSignal(pos, SimplePortals.blockPowerGauge);
-		}
-	}
-	
-	/**
-	 * Generates an address block id for the specified block.
-	 * 
-	 * @param block
-	 * The {@link Block} to generate the address id for.
-	 * @return
-	 * A string of the format "registryName#meta" or <code>null</code>
-	 * if <code>blockState</code> is <code>null</code>.
-	 */
-	public static String getAddressBlockId(Block block)
-	{
-		if (block == null) return null;
-
-		return Registry.BLOCK.getKey(block).toString();
-	}
-	
-	/**
-	 * Destroys the specified portals' portal blocks (the center).
-	 * 
-	 * @param world
-	 * The {@link ServerLevel} the portal is located in.
-	 * @param portal
-	 * The {@link Portal}.
-	 */
-	private static void destroyPortalBlocks(ServerLevel world, Portal portal)
-	{
-		for (BlockPos portalPos : portal.getPortalPositions())
-		{
-			world.destroyBlock(portalPos, false);
-		}
-	}
-	
-	/**
-	 * Gets the distance between 2 positions.
-	 * 
-	 * @param pos1
-	 * The first {@link BlockPos}.
-	 * @param pos2
-	 * The second {@link BlockPos}.
-	 * @return
-	 * The distance or <code>-1</code> if either position was <code>null</code>.
-	 */
-	private static int getDistance(BlockPos pos1, BlockPos pos2)
-	{
-		if (pos1 == null || pos2 == null) return -1;
-		
-		return Math.abs(pos1.getX() - pos2.getX() + pos1.getY() - pos2.getY() + pos1.getZ() - pos2.getZ()) + 1;
-	}
-	
-	/**
-	 * Find a corner starting at the specified position.
-	 * 
-	 * @param world
-	 * The {@link ServerLevel}.
-	 * @param startPos
-	 * The starting {@link BlockPos}.
-	 * @param searchDir
-	 * The direction to search in.
-	 * @param cornerFacing
-	 * One of the directions the corner is enclosed by.
-	 * @return
-	 * A {@link Corner} or <code>null</code> if one of the parameters was <code>null</code> or
-	 * no corner could be found.
-	 */
-	private static Corner findCorner(ServerLevel world, BlockPos startPos, Direction searchDir, Direction cornerFacing)
-	{
-		if (startPos == null || searchDir == null || cornerFacing == null) return null;
-		
-		BlockPos currentPos = startPos;
-		int size = 0;
-		
-		do
-		{
-			if (!isPortalFrame(world, currentPos))
-			{
-				if (isPortalFrame(world, currentPos.relative(cornerFacing)))
-				{
-					return new Corner(currentPos, searchDir.getOpposite(), cornerFacing);
-				}
-				
-				break;
-			}
-			
-			currentPos = currentPos.relative(searchDir);
-			size++;
-		}
-		while (size <= Settings.maxSize - 1);
-		
-		return null;
-	}
-	
-	/**
-	 * Registers the specified portal. 
-	 * 
-	 * @param world
-	 * The {@link ServerLevel}.
-	 * @param portal
-	 * The {@link Portal} to register.
-	 * @param powerGauges
-	 * The power gauges that are part or the portal.
-	 */
-	private static void register(ServerLevel world, Portal portal, List<BlockPos> powerGauges)
-	{
-		if (world == null || portal == null) return;
-		
-		for (BlockPos portalPos : portal.getAllPositions())
-		{
-			portals.put(portalPos.immutable(), portal);
-		}
-		
-		addresses.put(portal.getAddress(), portal);
-		power.put(portal, 0);
-		powerGauges.forEach(pos -> gauges.put(portal, pos));
-		
-		updatePowerGauges(world, portal);
-		
-		// Trigger save of portal data
-		
-		SimplePortals.portalSaveData.setDirty();
-	}
-	
-	/**
-	 * Unregisters the specified portal.
-	 * 
-	 * @param world
-	 * The {@link ServerLevel}.
-	 * @param portal
-	 * The {@link Portal} to unregister.
-	 */
-	private static void unregister(ServerLevel world, Portal portal)
-	{
-		if (world == null || portal == null) return;
-		
-		for (BlockPos portalPos : portal.getAllPositions())
-		{
-			portals.remove(portalPos, portal);
-		}
-		
-		addresses.remove(portal.getAddress(), portal);
-		power.remove(portal);
-		
-		updatePowerGauges(world, portal);
-		
-		List<BlockPos> gaugesToRemove = getPowerGauges(portal);
-		gaugesToRemove.forEach(pos -> gauges.remove(portal, pos));
-		
-		// Trigger save of portal data
-		
-		SimplePortals.portalSaveData.setDirty();
-	}
-	
-	/**
-	 * Checks if the block at the specified position is 
-	 * a portal frame.
-	 * 
-	 * @param world
-	 * The {@link ServerLevel}.
-	 * @param pos
-	 * The {@link BlockPos} to check.
-	 * @return
-	 * <code>true</code> if the block is a portal frame (power gauges also count as part of the frame), otherwise <code>false</code>.
-	 */
-	private static boolean isPortalFrame(ServerLevel world, BlockPos pos)
-	{
-		if (world == null || pos == null) return false;
-		
-		Block block = world.getBlockState(pos).getBlock();
-
-		return (block == SimplePortals.blockPortalFrame || block == SimplePortals.blockPowerGauge);
-	}
-	
-	/**
-	 * Checks if the specified block can be used in a portal address.<br>
-	 * Valid blocks may not have TileEntities and must be full blocks.
-	 * 
-	 * @param state
-	 * The {@link BlockState} of the block to check.
-	 * @return
-	 * <code>true</code> if the block is valid, otherwise <code>false</code>.
-	 */
-	private static boolean isValidAddressBlock(BlockState state)
-	{
-		return (state != null && !state.hasBlockEntity() && !state.isAir());
-	}
-	
-	/**
-	 * Writes the registry data to a NBT compound tag.
-	 * 
-	 * @param nbt
-	 * The {@link CompoundTag} to save the registry data in.
-	 */
-	public static void writeToNBT(CompoundTag nbt)
-	{
-		if (nbt == null) return;
-		
-		CompoundTag portalsTag = new CompoundTag();
-		CompoundTag portalBlocksTag = new CompoundTag();
-		CompoundTag powerTag = new CompoundTag();
-		CompoundTag subTag;
-		
-		// Serialization of all Portals into a list.
-		
-		int i = 0;
-		HashMap<Portal, Integer> portalIDs = Maps.newHashMap();
-		Set<Portal> uniquePortals = new HashSet<>(portals.values());
-		
-		for (Portal portal : uniquePortals)
-		{
-			portalIDs.put(portal, i);
-			powerTag.putInt(String.valueOf(i), power.get(portal));
-			portalsTag.put(String.valueOf(i++), portal.serializeNBT());
-		}
-		
-		i = 0;
-		int x = 0;
-		
-		// Serialization of BlockPos to Portal map.
-		
-		for (BlockPos pos : portals.keySet())
-		{
-			subTag = new CompoundTag();
-			subTag.putLong("pos", pos.asLong());
-			subTag.putBoolean("isGauge", gauges.containsValue(pos));
-			
-			for (Portal portal : portals.get(pos))
-			{
-				subTag.putInt("portal" + x++, portalIDs.get(portal));
-			}
-			
-			x = 0;
-			
-			portalBlocksTag.put(String.valueOf(i++), subTag);
-		}
-		
-		nbt.put("portals", portalsTag);
-		nbt.put("portalBlocks", portalBlocksTag);
-		nbt.put("power", powerTag);
-	}
-	
-	/**
-	 * Reads the registry data from a NBT compound tag.
-	 * 
-	 * @param nbt
-	 * The {@link CompoundTag} to read the registry data from.
-	 */
-	public static void readFromNBT(CompoundTag nbt)
-	{
-		if (nbt == null) return;
-		
-		portals.clear();
-		addresses.clear();
-		
-		CompoundTag portalsTag = nbt.getCompound("portals");
-		CompoundTag portalBlocksTag = nbt.getCompound("portalBlocks");
-		CompoundTag powerTag = nbt.getCompound("power");
-		
-		int i = 0;
-		String key;
-		CompoundTag tag;
-		Portal portal;
-		
-		// Get the portals and their IDs.
-		
-		HashMap<Integer, Portal> portalIDs = Maps.newHashMap();
-		
-		while(portalsTag.contains(key = String.valueOf(i)))
-		{
-			tag = portalsTag.getCompound(key);
-			
-			portal = new Portal();
-			portal.deserializeNBT(tag);
-
-			portalIDs.put(i++, portal);
-		}
-		
-		// Deserialization of BlockPos to Portal map.
-		
-		i = 0;
-		int x = 0;
-		String subKey;
-		BlockPos portalPos;
-		boolean isGauge;
-		
-		while (portalBlocksTag.contains(key = String.valueOf(i++)))
-		{
-			tag = portalBlocksTag.getCompound(key);
-			
-			portalPos = BlockPos.of(tag.getLong("pos"));
-			isGauge = tag.getBoolean("isGauge");
-			
-			while (tag.contains(subKey = "portal" + x++))
-			{
-				portal = portalIDs.get(tag.getInt(subKey));
-				portals.put(portalPos, portal);
-				
-				if (isGauge) gauges.put(portal, portalPos);
-			}
-			
-			x = 0;
-		}
-		
-		// Regeneration of Address to Portal map.
-		
-		for (Portal p : portalIDs.values())
-		{
-			addresses.put(p.getAddress(), p);
-		}
-		
-		// Generate power map.
-		
-		i = 0;
-		
-		while (powerTag.contains(key = String.valueOf(i)))
-		{
-			power.put(portalIDs.get(i++), powerTag.getInt(key));
-		}
-	}
-}
\ No newline at end of file
+package net.zarathul.simpleportals.registration;
+
+import com.google.common.collect.*;
+import it.unimi.dsi.fastutil.ints.IntCollection;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.core.Direction.Axis;
+import net.minecraft.core.Registry;
+import net.minecraft.core.SectionPos;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.TickTask;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.levelgen.structure.BoundingBox;
+import net.zarathul.simpleportals.Settings;
+import net.zarathul.simpleportals.SimplePortals;
+import net.zarathul.simpleportals.blocks.BlockPortal;
+import net.zarathul.simpleportals.common.NbtPortalStorage;
+import net.zarathul.simpleportals.common.PortalStorage;
+import net.zarathul.simpleportals.common.Utils;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The central registration for all portals.<br>
+ * Portals are only ever registered and unregistered on the server thread. Reads are safe
+ * from any thread: queries hold a read lock while they look at the registry and only hand
+ * out immutable data, so readers never see a half registered portal. Threads that need a
+ * consistent view of all portals should use {@link #getSnapshot()}, which does not lock
+ * at all as long as the registry did not change.
+ */
+public final class PortalRegistry
+{
+	/**
+	 * The number of portals (by handle) that are saved together in one file.
+	 */
+	public static final int SAVE_SEGMENT_SIZE = 1024;
+	
+	private static final ImmutableMap<Direction,Direction[]> cornerSearchDirs;
+	private static final Map<ResourceKey<Level>, PortalSpatialIndex> portals;
+	private static final ListMultimap<Address, Portal> addresses;
+	private static final PortalHandles handles;
+	private static final Map<Address, Multiset<ResourceKey<Level>>> directory;
+	private static final Set<ResourceKey<Level>> knownDimensions;
+	private static final ReentrantReadWriteLock lock;
+	private static volatile long version;
+	private static volatile PortalRegistrySnapshot snapshot;
+	// Dimensions whose portals changed since the last snapshot. Guarded by the write lock for
+	// writers and by itself for the readers that build the next snapshot.
+	private static final Set<ResourceKey<Level>> changedDimensions = Sets.newHashSet();
+	private static PortalStorage storage;
+	// Collects the repairs made while the portal data of a dimension is loaded.
+	private static PortalLoadCheck loadCheck;
+	// Dimensions with a scheduled load (see requestDimensionLoads()). Only used on the server thread.
+	private static final Set<ResourceKey<Level>> pendingLoads = Sets.newHashSet();
+	
+	static
+	{
+		EnumMap<Direction,Direction[]> temp = Maps.newEnumMap(Direction.class);
+		temp.put(Direction.DOWN, new Direction[] { Direction.SOUTH, Direction.EAST });
+		temp.put(Direction.UP, new Direction[] { Direction.SOUTH, Direction.EAST });
+		temp.put(Direction.NORTH, new Direction[] { Direction.DOWN, Direction.EAST });
+		temp.put(Direction.SOUTH, new Direction[] { Direction.DOWN, Direction.EAST });
+		temp.put(Direction.WEST, new Direction[] { Direction.DOWN, Direction.SOUTH });
+		temp.put(Direction.EAST, new Direction[] { Direction.DOWN, Direction.SOUTH });
+		cornerSearchDirs = Maps.immutableEnumMap(temp);
+		
+		portals = Maps.newHashMap();
+		addresses = ArrayListMultimap.create();
+		handles = new PortalHandles();
+		directory = Maps.newHashMap();
+		knownDimensions = Sets.newHashSet();
+		lock = new ReentrantReadWriteLock();
+		storage = new NbtPortalStorage();
+	}
+
+	/**
+	 * Gets the {@link PortalStorage} that persists the registry.
+	 */
+	public static PortalStorage getStorage()
+	{
+		return storage;
+	}
+
+	/**
+	 * Sets the {@link PortalStorage} that persists the registry. Must only be called
+	 * while no dimension is loaded.
+	 */
+	public static void setStorage(PortalStorage newStorage)
+	{
+		if (newStorage != null) storage = newStorage;
+	}
+
+	/**
+	 * :WARNING: Completely clears the registry. :WARNING:
+	 * This does not deactivate any portals, meaning no portals blocks will get removed.
+	 */
+	public static void clear()
+	{
+		reset();
+
+		storage.setAllPortalsDirty();
+	}
+	
+	/**
+	 * Clears the registry without marking anything for saving. Used before the portal
+	 * data of a new server gets loaded.
+	 */
+	public static void reset()
+	{
+		lock.writeLock().lock();
+		
+		try
+		{
+			portals.clear();
+			addresses.clear();
+			handles.clear();
+			directory.clear();
+			knownDimensions.clear();
+			AddressPool.clear();
+			loadCheck = null;
+			pendingLoads.clear();
+			changedDimensions.clear();
+			PortalDestinationCache.clear();
+			version++;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Removes all portals of the specified dimension from the registry, without marking
+	 * anything for saving. Called when a dimension gets unloaded. The address directory
+	 * (see {@link #getDimensionsWithAddress(Address)}) keeps its entries for the dimension.
+	 * 
+	 * @param dimension
+	 * The unloaded dimension.
+	 */
+	public static void unloadDimension(ResourceKey<Level> dimension)
+	{
+		lock.writeLock().lock();
+		
+		try
+		{
+			if (portals.remove(dimension) == null) return;
+			
+			changedDimensions.add(dimension);
+			PortalDestinationCache.clear(dimension);
+			
+			Portal portal;
+			
+			for (int handle = 0; handle < handles.getHighWaterMark(); handle++)
+			{
+				portal = handles.getPortal(handle);
+				if (portal == null || portal.getDimension() != dimension) continue;
+				
+				removeAddress(portal);
+				handles.release(handle);
+			}
+			
+			version++;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Called after the portal data of a dimension was loaded. From then on the address directory
+	 * stays up to date for that dimension, even if the dimension gets unloaded again.<br>
+	 * Also logs a summary of the checks made while the portals were loaded (see {@link PortalLoadCheck}).
+	 * 
+	 * @param dimension
+	 * The loaded dimension.
+	 * @return
+	 * <code>true</code> if the loaded data had to be repaired and should be saved again,
+	 * otherwise <code>false</code>.
+	 */
+	public static boolean onDimensionLoaded(ResourceKey<Level> dimension)
+	{
+		lock.writeLock().lock();
+		
+		try
+		{
+			knownDimensions.add(dimension);
+			// Loaded portals only become visible to the snapshot once the whole dimension is in.
+			if (changedDimensions.contains(dimension)) version++;
+			
+			if (loadCheck == null) return false;
+			
+			boolean repaired = loadCheck.hasRepairs();
+			
+			if (repaired)
+			{
+				SimplePortals.log.warn(loadCheck.getSummary(dimension));
+			}
+			else
+			{
+				SimplePortals.log.info(loadCheck.getSummary(dimension));
+			}
+			
+			loadCheck = null;
+			
+			return repaired;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Gets all dimensions that contain portals with the specified address. This also
+	 * includes dimensions that are currently not loaded.
+	 * 
+	 * @param address
+	 * An portal {@link Address}.
+	 * @return
+	 * A read-only set of dimensions (may be empty) or <code>null</code> if
+	 * <code>address</code> was <code>null</code>.
+	 */
+	public static Set<ResourceKey<Level>> getDimensionsWithAddress(Address address)
+	{
+		if (address == null) return null;
+		
+		lock.readLock().lock();
+		
+		try
+		{
+			Multiset<ResourceKey<Level>> dimensions = directory.get(address);
+			
+			return (dimensions != null) ? ImmutableSet.copyOf(dimensions.elementSet()) : Collections.emptySet();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Activate a portal at the specified position.
+	 * @param world
+	 * The {@link ServerLevel} the portal is located in.
+	 * @param pos
+	 * The {@link BlockPos} of the portal frame.
+	 * @param side
+	 * The {@link Direction} representing the side of the portal frame that was hit
+	 * by the portal activator.
+	 * @return
+	 * <code>true</code> if a portal could be activated, otherwise <code>false</code>.
+	 */
+	public static boolean activatePortal(ServerLevel world, BlockPos pos, Direction side)
+	{
+		if (world == null || pos == null || side == null) return false;
+		
+		Corner corner1 = null;
+		Corner corner2;
+		Corner corner3;
+		Corner corner4;
+		Direction firstSearchDir = null;
+		
+		// Find corners
+		
+		for (Direction searchDir : cornerSearchDirs.get(side))
+		{
+			corner1 = findCorner(world, pos, searchDir, side);
+			
+			if (corner1 != null)
+			{
+				firstSearchDir = searchDir;
+
+				break;
+			}
+		}
+		
+		if (corner1 == null) return false;
+		
+		corner2 = findCorner(world, pos, firstSearchDir.getOpposite(), side);
+		
+		if (corner2 == null) return false;
+		
+		corner3 = findCorner(world, corner1.getPos().offset(side.getNormal()), side, firstSearchDir.getOpposite());
+		
+		if (corner3 == null) return false;
+		
+		corner4 = findCorner(world, corner3.getPos().offset(firstSearchDir.getOpposite().getNormal()), firstSearchDir.getOpposite(), side.getOpposite());
+		
+		if (corner4 == null || !corner4.equals(findCorner(world, corner2.getPos().offset(side.getNormal()), side, firstSearchDir))) return false;
+		
+		// Check size
+		
+		if (getDistance(corner1.getPos(), corner2.getPos()) > Settings.maxSize
+			|| getDistance(corner1.getPos(), corner3.getPos()) > Settings.maxSize) return false;
+		
+		// Check address blocks validity
+		
+		BlockState addBlock1 = world.getBlockState(corner1.getPos());
+		
+		if (!isValidAddressBlock(addBlock1)) return false;
+		
+		BlockState addBlock2 = world.getBlockState(corner2.getPos());
+		
+		if (!isValidAddressBlock(addBlock2)) return false;
+		
+		BlockState addBlock3 = world.getBlockState(corner3.getPos());
+		
+		if (!isValidAddressBlock(addBlock3)) return false;
+		
+		BlockState addBlock4 = world.getBlockState(corner4.getPos());
+		
+		if (!isValidAddressBlock(addBlock4)) return false;
+		
+		// Determine portal axis
+		
+		int corner1Y = corner1.getPos().getY();
+		
+		boolean isHorizontal = (corner1Y == corner2.getPos().getY()
+			&& corner1Y == corner3.getPos().getY()
+			&& corner1Y == corner4.getPos().getY());
+		
+		// Only relevant for vertical portals.
+		Axis horizontalCornerFacing = (corner1.getFacingA().getAxis() != Axis.Y)
+			? corner1.getFacingA().getAxis()
+			: corner1.getFacingB().getAxis();
+		
+		Axis portalAxis = isHorizontal
+			? Axis.Y
+			: Utils.getOrthogonalTo(horizontalCornerFacing);
+		
+		// Create portal data structure
+		
+		Address address = AddressPool.intern(new Address(
+			getAddressBlockId(addBlock1.getBlock()),
+			getAddressBlockId(addBlock2.getBlock()),
+			getAddressBlockId(addBlock3.getBlock()),
+			getAddressBlockId(addBlock4.getBlock())));
+
+		Portal portal = new Portal(world.dimension(), address, portalAxis, corner1, corner2, corner3, corner4);
+		
+		Iterable<BlockPos> portalPositions = portal.getPortalPositions();
+		
+		// Ensure that the inside of the frame only contains air blocks
+		
+		for (BlockPos checkPos : portalPositions)
+		{
+			if (!world.isEmptyBlock(checkPos)) return false;
+		}
+		
+		// Place portal blocks
+		
+		for (BlockPos portalPos : portalPositions)
+		{
+			world.setBlock(portalPos, SimplePortals.blockPortal.defaultBlockState().setValue(BlockPortal.AXIS, portalAxis), Utils.SetBlockFlags.FULL_UPDATE);
+		}
+		
+		// Find power gauges in the frame
+		
+		List<BlockPos> powerGauges = new ArrayList<>();
+		LongList framePositions = portal.getPackedFramePositions(false);
+		BlockPos.MutableBlockPos framePos = new BlockPos.MutableBlockPos();
+		
+		for (int i = 0; i < framePositions.size(); i++)
+		{
+			if (world.getBlockState(framePos.set(framePositions.getLong(i))).getBlock() == SimplePortals.blockPowerGauge)
+			{
+				powerGauges.add(framePos.immutable());
+			}
+		}
+		
+		// Register portal
+		
+		register(world, portal, powerGauges);
+		
+		return true;
+	}
+	
+	/**
+	 * Deactivate the portal at the specified position.<br>
+	 * If multiple portals share the same portal frame block,
+	 * all those portals get deactivated.
+	 * 
+	 * @param world
+	 * The {@link ServerLevel} the portal is located in.
+	 * @param pos
+	 * The {@link BlockPos} of one of the portals blocks (portal or frame).
+	 */
+	public static void deactivatePortal(ServerLevel world, BlockPos pos)
+	{
+		if (world == null || pos == null) return;
+		
+		// Copying of the list is required because unregister() changes it.
+		List<Portal> affectedPortals = new ArrayList<>(getPortalsAt(pos, world.dimension()));
+		
+		// Unregister all affected portals first to avoid unnecessary deactivatePortal()
+		// calls that would otherwise be caused by the destruction of the portal blocks.
+		for (Portal portal : affectedPortals) unregister(world, portal);
+		for (Portal portal : affectedPortals) destroyPortalBlocks(world, portal);
+	}
+	
+	/**
+	 * Deactivates all specified portals at once. The portals get unregistered in one go,
+	 * power gauges that are shared by multiple portals only get updated once and the
+	 * portal data is only marked for saving once.
+	 * 
+	 * @param world
+	 * The {@link ServerLevel} the portals are located in. Portals in other dimensions are ignored.
+	 * @param portalsToDeactivate
+	 * The portals to deactivate.
+	 * @return
+	 * The registered instances of all portals that actually got deactivated.
+	 */
+	public static List<Portal> deactivatePortals(ServerLevel world, Collection<Portal> portalsToDeactivate)
+	{
+		List<Portal> removedPortals = unregisterAll(world, portalsToDeactivate);
+		
+		for (Portal portal : removedPortals) destroyPortalBlocks(world, portal);
+		
+		return removedPortals;
+	}
+	
+	/**
+	 * Registers all specified portals at once, without placing any blocks. Power gauges
+	 * that are shared by multiple portals only get updated once and the portal data is only
+	 * marked for saving once. Portals that are already registered are skipped.
+	 * 
+	 * @param world
+	 * The {@link ServerLevel} the portals are located in. Portals in other dimensions are ignored.
+	 * @param portalsAndGauges
+	 * The portals to register and the positions of their power gauges.
+	 * @return
+	 * The number of registered portals.
+	 */
+	public static int registerAll(ServerLevel world, Map<Portal, List<BlockPos>> portalsAndGauges)
+	{
+		if (world == null || portalsAndGauges == null) return 0;
+		
+		Set<BlockPos> gaugePositions = new HashSet<>();
+		int count = addAll(world.dimension(), world, portalsAndGauges, gaugePositions);
+		
+		for (BlockPos pos : gaugePositions)
+		{
+			world.updateNeighbourForOutputSignal(pos, SimplePortals.blockPowerGauge);
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Adds all specified portals to the registry under a single write lock, without updating
+	 * any power gauges. See {@link #registerAll(ServerLevel, Map)}.
+	 * 
+	 * @param dimension
+	 * The dimension the portals are located in. Portals in other dimensions are ignored.
+	 * @param world
+	 * The {@link ServerLevel} of the dimension, used to find out which chunks of the portals
+	 * are loaded. If <code>null</code>, no chunk counts as loaded.
+	 * @param portalsAndGauges
+	 * The portals to register and the positions of their power gauges.
+	 * @param gaugePositions
+	 * Receives the power gauge positions of all added portals.
+	 * @return
+	 * The number of added portals.
+	 */
+	static int addAll(ResourceKey<Level> dimension, ServerLevel world, Map<Portal, List<BlockPos>> portalsAndGauges, Set<BlockPos> gaugePositions)
+	{
+		int count = 0;
+		
+		lock.writeLock().lock();
+		
+		try
+		{
+			for (Map.Entry<Portal, List<BlockPos>> entry : portalsAndGauges.entrySet())
+			{
+				Portal portal = entry.getKey();
+				
+				if (portal.getDimension() != dimension || getRegisteredInstance(portal) != null) continue;
+				
+				addToRegistry(world, portal, entry.getValue());
+				gaugePositions.addAll(entry.getValue());
+				count++;
+			}
+			
+			if (count > 0) version++;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Checks portals that don't come from the registry or its storage (e.g. imported portals)
+	 * before they get registered with {@link #registerAll(ServerLevel, Map)}. Portals get the
+	 * same checks as saved portals while loading (see {@link PortalLoadCheck}) and are compared
+	 * with the blocks in the world. Portals that fail are removed from the map, the power gauge
+	 * lists of all others are repaired. Loads the chunks of the portals if necessary.
+	 * 
+	 * @param world
+	 * The {@link ServerLevel} the portals are supposed to be in.
+	 * @param portalsAndGauges
+	 * The portals and the positions of their power gauges. Gets modified.
+	 * @return
+	 * The number of removed portals.
+	 */
+	public static int checkPortals(ServerLevel world, Map<Portal, List<BlockPos>> portalsAndGauges)
+	{
+		if (world == null || portalsAndGauges == null) return 0;
+		
+		PortalLoadCheck check = new PortalLoadCheck();
+		int removed = 0;
+		
+		for (Iterator<Map.Entry<Portal, List<BlockPos>>> iterator = portalsAndGauges.entrySet().iterator(); iterator.hasNext();)
+		{
+			Map.Entry<Portal, List<BlockPos>> entry = iterator.next();
+			Portal portal = entry.getKey();
+			
+			// Damaged portals are missing frame or portal blocks or have a different address in the world.
+			if (!check.isValid(portal) || portal.getDimension() != world.dimension() || portal.isDamaged(world))
+			{
+				iterator.remove();
+				removed++;
+				continue;
+			}
+			
+			entry.setValue(check.checkGauges(portal, entry.getValue()));
+		}
+		
+		return removed;
+	}
+	
+	/**
+	 * Unregisters all specified portals at once, without removing any blocks. Power gauges
+	 * that are shared by multiple portals only get updated once and the portal data is only
+	 * marked for saving once.
+	 * 
+	 * @param world
+	 * The {@link ServerLevel} the portals are located in. Portals in other dimensions are ignored.
+	 * @param portalsToRemove
+	 * The portals to unregister.
+	 * @return
+	 * The registered instances of all portals that actually got unregistered.
+	 */
+	public static List<Portal> unregisterAll(ServerLevel world, Collection<Portal> portalsToRemove)
+	{
+		if (world == null || portalsToRemove == null) return Collections.emptyList();
+		
+		Set<BlockPos> gaugePositions = new HashSet<>();
+		List<Portal> removedPortals = removeAll(world.dimension(), portalsToRemove, gaugePositions);
+		
+		for (BlockPos pos : gaugePositions)
+		{
+			world.updateNeighbourForOutputSignal(pos, SimplePortals.blockPowerGauge);
+		}
+		
+		return removedPortals;
+	}
+	
+	/**
+	 * Removes all specified portals from the registry under a single write lock, without
+	 * updating any power gauges. See {@link #unregisterAll(ServerLevel, Collection)}.
+	 * 
+	 * @param dimension
+	 * The dimension the portals are located in. Portals in other dimensions are ignored.
+	 * @param portalsToRemove
+	 * The portals to remove.
+	 * @param gaugePositions
+	 * Receives the power gauge positions of all removed portals.
+	 * @return
+	 * The registered instances of all portals that actually got removed.
+	 */
+	static List<Portal> removeAll(ResourceKey<Level> dimension, Collection<Portal> portalsToRemove, Set<BlockPos> gaugePositions)
+	{
+		List<Portal> removedPortals = new ArrayList<>(portalsToRemove.size());
+		
+		lock.writeLock().lock();
+		
+		try
+		{
+			for (Portal portal : portalsToRemove)
+			{
+				if (portal.getDimension() != dimension) continue;
+				
+				portal = getRegisteredInstance(portal);
+				if (portal == null) continue;
+				
+				gaugePositions.addAll(removeFromRegistry(portal));
+				removedPortals.add(portal);
+			}
+			
+			if (!removedPortals.isEmpty()) version++;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		
+		return removedPortals;
+	}
+	
+	/**
+	 * Determines if there is a portal at the specified position in the 
+	 * specified dimension.
+	 * 
+	 * @param pos
+	 * The {@link BlockPos} of a portal or frame block.
+	 * @param dimension
+	 * The dimension the portal is supposed to be in.
+	 * @return
+	 * <code>true</code> if the block at the specified position is part of 
+	 * a registered portal, otherwise <code>false</code>.
+	 */
+	public static boolean isPortalAt(BlockPos pos, ResourceKey<Level> dimension)
+	{
+		if (pos == null) return false;
+		
+		return getSnapshot().isPortalAt(pos, dimension);
+	}
+
+	/**
+	 * Gets the current registry version. The version changes every time
+	 * portals get registered or unregistered.
+	 */
+	public static long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * Gets an immutable snapshot of all registered portals. The snapshot is only
+	 * updated after the registry changed, so repeated calls return the same instance.
+	 * Updates only copy the dimensions that changed.
+	 *
+	 * @return
+	 * The {@link PortalRegistrySnapshot} for the current version.
+	 */
+	public static PortalRegistrySnapshot getSnapshot()
+	{
+		PortalRegistrySnapshot current = snapshot;
+		if (current != null && current.getVersion() == version) return current;
+		
+		lock.readLock().lock();
+		
+		try
+		{
+			// The version can't change while the read lock is held, but other readers may
+			// be updating the snapshot at the same time.
+			synchronized (changedDimensions)
+			{
+				current = snapshot;
+				if (current != null && current.getVersion() == version) return current;
+				
+				// Only the changed dimensions get copied, all others are shared with the previous snapshot.
+				current = ((current != null) ? current : PortalRegistrySnapshot.EMPTY).update(version, portals, changedDimensions);
+				changedDimensions.clear();
+				snapshot = current;
+				
+				return current;
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets all registered portals and their positions.<br>
+	 * Note: The registry does not store individual positions, so the map gets
+	 * generated from the portals geometry. This is expensive for large portals,
+	 * but only happens once per registry version.
+	 *
+ 	 * @return
+	 * An immutable map containing all portals and their positions.
+	 */
+	public static ImmutableListMultimap<BlockPos, Portal> getPortals()
+	{
+		return getSnapshot().getPortals();
+	}
+
+	/**
+	 * Gets all registered portals and their addresses.
+	 *
+	 * @return
+	 * An immutable map containing all portals and their addresses.
+	 */
+	public static ImmutableListMultimap<Address, Portal> getAddresses()
+	{
+		return getSnapshot().getAddresses();
+	}
+
+	/**
+	 * Gets the portals registered at the specified position in the
+	 * specified dimension.
+	 * 
+	 * @param pos
+	 * The {@link BlockPos} of a portal or frame block.
+	 * @param dimension
+	 * The dimension the portals should be in.
+	 * @return
+	 * A shared read-only list of found portals (may be empty) or <code>null</code> if
+	 * <code>pos</code> was <code>null</code>. The list is not copied, so calling this
+	 * does not allocate.
+	 */
+	public static List<Portal> getPortalsAt(BlockPos pos, ResourceKey<Level> dimension)
+	{
+		if (pos == null) return null;
+		
+		// Called for every entity inside a portal, the snapshot only needs the lock after the registry changed.
+		return getSnapshot().getPortalsAt(pos, dimension);
+	}
+
+	/**
+	 * Gets the first portal registered at the specified position in the
+	 * specified dimension. Use this instead of {@link #getPortalsAt(BlockPos, ResourceKey)}
+	 * if only one portal is needed.
+	 *
+	 * @param pos
+	 * The {@link BlockPos} of a portal or frame block.
+	 * @param dimension
+	 * The dimension the portal should be in.
+	 * @return
+	 * The found {@link Portal} or <code>null</code> if there is none or <code>pos</code>
+	 * was <code>null</code>.
+	 */
+	public static Portal getPortalAt(BlockPos pos, ResourceKey<Level> dimension)
+	{
+		if (pos == null) return null;
+		
+		return getSnapshot().getPortalAt(pos, dimension);
+	}
+
+	/**
+	 * Gets all the portals registered in the specified dimension.
+	 *
+	 * @param dimension
+	 * The dimension the portals should be in.
+	 * @return
+	 * A read-only list of found portals (may be empty).
+	 */
+	public static List<Portal> getPortalsInDimension(ResourceKey<Level> dimension)
+	{
+		return getSnapshot().getPortalsInDimension(dimension);
+	}
+	
+	/**
+	 * Gets all portals that touch the specified chunk.
+	 *
+	 * @param chunkPos
+	 * The {@link ChunkPos} of the chunk.
+	 * @param dimension
+	 * The dimension the chunk is in.
+	 * @return
+	 * A read-only list of found portals (may be empty) or <code>null</code> if
+	 * <code>chunkPos</code> was <code>null</code>.
+	 */
+	public static List<Portal> getPortalsInChunk(ChunkPos chunkPos, ResourceKey<Level> dimension)
+	{
+		if (chunkPos == null) return null;
+		
+		lock.readLock().lock();
+		
+		try
+		{
+			PortalSpatialIndex index = portals.get(dimension);
+		
+			return (index != null) ? index.getInChunk(chunkPos.x, chunkPos.z) : Collections.emptyList();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Gets all portals within the specified distance of a position. The distance is
+	 * measured to the closest block of each portal (frame included).
+	 *
+	 * @param pos
+	 * The {@link BlockPos} to measure from.
+	 * @param radius
+	 * The maximum distance in blocks.
+	 * @param dimension
+	 * The dimension the portals should be in.
+	 * @return
+	 * A read-only list of found portals (may be empty) or <code>null</code> if
+	 * <code>pos</code> was <code>null</code>.
+	 */
+	public static List<Portal> getPortalsInRadius(BlockPos pos, int radius, ResourceKey<Level> dimension)
+	{
+		if (pos == null) return null;
+		
+		lock.readLock().lock();
+		
+		try
+		{
+			PortalSpatialIndex index = portals.get(dimension);
+			if (index == null || radius < 0) return Collections.emptyList();
+		
+			List<Portal> foundPortals = new ArrayList<>();
+			index.getWithinRadius(pos, radius, foundPortals);
+		
+			return Collections.unmodifiableList(foundPortals);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Gets the portal closest to the specified position. The distance is measured to
+	 * the closest block of each portal (frame included).
+	 *
+	 * @param pos
+	 * The {@link BlockPos} to measure from.
+	 * @param maxDistance
+	 * The maximum distance in blocks.
+	 * @param dimension
+	 * The dimension the portal should be in.
+	 * @return
+	 * The closest {@link Portal} or <code>null</code> if there is none within
+	 * <code>maxDistance</code> or <code>pos</code> was <code>null</code>.
+	 */
+	public static Portal getNearestPortal(BlockPos pos, int maxDistance, ResourceKey<Level> dimension)
+	{
+		if (pos == null || maxDistance < 0) return null;
+		
+		lock.readLock().lock();
+		
+		try
+		{
+			PortalSpatialIndex index = portals.get(dimension);
+		
+			return (index != null) ? index.getNearest(pos, maxDistance) : null;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Determines if all chunks the specified portal is in are loaded.
+	 *
+	 * @param portal
+	 * The {@link Portal} to check.
+	 * @return
+	 * <code>true</code> if the portal is registered and loaded, otherwise <code>false</code>.
+	 */
+	public static boolean isPortalLoaded(Portal portal)
+	{
+		lock.readLock().lock();
+		
+		try
+		{
+			portal = getRegisteredInstance(portal);
+			if (portal == null) return false;
+		
+			PortalSpatialIndex index = portals.get(portal.getDimension());
+		
+			return (index != null && index.isLoaded(portal));
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Called when a chunk was loaded. Per chunk portal data gets prepared here.
+	 *
+	 * @param world
+	 * The {@link ServerLevel} the chunk was loaded in.
+	 * @param chunkPos
+	 * The {@link ChunkPos} of the loaded chunk.
+	 */
+	public static void onChunkLoad(ServerLevel world, ChunkPos chunkPos)
+	{
+		lock.writeLock().lock();
+		
+		try
+		{
+			PortalSpatialIndex index = portals.get(world.dimension());
+			if (index != null) index.chunkLoaded(chunkPos.x, chunkPos.z);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Called when a chunk was unloaded. Per chunk portal data gets dropped here.
+	 *
+	 * @param world
+	 * The {@link ServerLevel} the chunk was unloaded in.
+	 * @param chunkPos
+	 * The {@link ChunkPos} of the unloaded chunk.
+	 */
+	public static void onChunkUnload(ServerLevel world, ChunkPos chunkPos)
+	{
+		PortalDestinationCache.onChunkUnload(world, chunkPos);
+		
+		lock.writeLock().lock();
+		
+		try
+		{
+			PortalSpatialIndex index = portals.get(world.dimension());
+			if (index != null) index.chunkUnloaded(chunkPos.x, chunkPos.z);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets all portals with the specified address.
+	 * 
+	 * @param address
+	 * An portal {@link Address}.
+	 * @return
+	 * A read-only list of found portals (may be empty) or <code>null</code> if
+	 * <code>address</code> was <code>null</code>.
+	 */
+	public static List<Portal> getPortalsWithAddress(Address address)
+	{
+		if (address == null) return null;
+		
+		lock.readLock().lock();
+		
+		try
+		{
+			List<Portal> foundPortals = new ArrayList<>(addresses.get(address));
+		
+			return Collections.unmodifiableList(foundPortals);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets all portals with the specified address, including the portals of dimensions whose
+	 * portal data is not loaded. Those dimensions are looked up in the address directory (see
+	 * {@link #getDimensionsWithAddress(Address)}) and their portal data gets loaded, as long as
+	 * the server still has their level. Must be called on the server thread, but not while
+	 * the server ticks entities or blocks (see {@link #requestDimensionLoads}).
+	 * 
+	 * @param server
+	 * The {@link MinecraftServer}.
+	 * @param address
+	 * An portal {@link Address}.
+	 * @return
+	 * A read-only list of found portals (may be empty) or <code>null</code> if
+	 * <code>address</code> was <code>null</code>.
+	 */
+	public static List<Portal> getPortalsWithAddress(MinecraftServer server, Address address)
+	{
+		if (address == null) return null;
+		
+		for (ResourceKey<Level> dimension : getDimensionsWithAddress(address))
+		{
+			if (isDimensionLoaded(dimension)) continue;
+			
+			ServerLevel world = server.getLevel(dimension);
+			
+			if (world != null)
+			{
+				storage.load(world);
+			}
+			else
+			{
+				SimplePortals.log.debug("Portals with address '{}' in {} are unreachable, the dimension does not exist.", address, dimension.location());
+			}
+		}
+		
+		return getPortalsWithAddress(address);
+	}
+
+	/**
+	 * Schedules loading the portal data of all dimensions that contain portals with the
+	 * specified address but are not loaded. The loads run as server tasks between ticks,
+	 * so a dimension never gets decoded in the middle of an entity or block tick. Until
+	 * then, {@link #getPortalsWithAddress(Address)} doesn't find the portals of those
+	 * dimensions. Must be called on the server thread.
+	 * 
+	 * @param server
+	 * The {@link MinecraftServer}.
+	 * @param address
+	 * An portal {@link Address}.
+	 */
+	public static void requestDimensionLoads(MinecraftServer server, Address address)
+	{
+		if (address == null) return;
+		
+		for (ResourceKey<Level> dimension : getDimensionsWithAddress(address))
+		{
+			if (isDimensionLoaded(dimension) || server.getLevel(dimension) == null || !pendingLoads.add(dimension)) continue;
+			
+			// execute() would run the task right away on the server thread, tell() always queues it.
+			server.tell(new TickTask(server.getTickCount(), () -> {
+				pendingLoads.remove(dimension);
+				
+				ServerLevel world = server.getLevel(dimension);
+				if (world != null && !isDimensionLoaded(dimension)) storage.load(world);
+			}));
+		}
+	}
+	
+	/**
+	 * Determines if the portal data of the specified dimension is in the registry.
+	 * Dimensions without any portals count as not loaded.
+	 */
+	private static boolean isDimensionLoaded(ResourceKey<Level> dimension)
+	{
+		lock.readLock().lock();
+		
+		try
+		{
+			return portals.containsKey(dimension);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets all portals in every dimension.
+	 *
+	 * @return
+	 * A read-only list of all portals (may be empty).
+	 */
+	public static List<Portal> getAllPortals()
+	{
+		return getSnapshot().getAllPortals();
+	}
+
+	/**
+	 * Gets the positions of all power gauges for the specified portal.
+	 * 
+	 * @param portal
+	 * The {@link Portal} to get the power gauges for.
+	 * @return
+	 * A read-only list of {@link BlockPos} (may be empty) or <code>null</code> if
+	 * <code>portal</code> was <code>null</code>.
+	 */
+	public static List<BlockPos> getPowerGauges(Portal portal)
+	{
+		if (portal == null) return null;
+		
+		lock.readLock().lock();
+		
+		try
+		{
+			portal = getRegisteredInstance(portal);
+		
+			return (portal != null) ? handles.getGauges(portal.getHandle()) : Collections.emptyList();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Adds the specified amount of power to the specified portal.
+	 * 
+	 * @param portal
+	 * The {@link Portal} to which the power should be added.
+	 * @param amount
+	 * The amount of power to add.
+	 * @return
+	 * The surplus power that could not be added to the portal.
+	 */
+	public static int addPower(Portal portal, int amount)
+	{
+		if (portal == null || amount < 1) return amount;
+		
+		lock.writeLock().lock();
+		
+		try
+		{
+			portal = getRegisteredInstance(portal);
+			if (portal == null) return amount;
+		
+			int handle = portal.getHandle();
+			int oldAmount = handles.getPower(handle);
+			int freeCapacity = Math.max(Settings.powerCapacity - oldAmount, 0);
+			int amountToAdd = Math.min(freeCapacity, amount);
+			int surplus = amount - amountToAdd;
+		
+			handles.setPower(handle, oldAmount + amountToAdd);
+		
+			// Only journal the new power, the portal data itself did not change.
+		
+			setPowerDirty(portal.getDimension(), handle);
+		
+			return surplus;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Removes the specified amount of power from the specified portal.<br>
+	 * Only ever removes power if the portal contains enough. 
+	 * 
+	 * @param portal
+	 * The {@link Portal} from which the power should be removed.
+	 * @param amount
+	 * The amount of power to remove.
+	 * @return
+	 * <code>true</code> if the amount could be removed, otherwise <code>false</code>.
+	 */
+	public static boolean removePower(Portal portal, int amount)
+	{
+		if (portal == null || amount < 1) return false;
+		
+		lock.writeLock().lock();
+		
+		try
+		{
+			portal = getRegisteredInstance(portal);
+			if (portal == null) return false;
+		
+			int handle = portal.getHandle();
+			int oldAmount = handles.getPower(handle);
+		
+			if (oldAmount < amount) return false;
+		
+			handles.setPower(handle, oldAmount - amount);
+		
+			// Only journal the new power, the portal data itself did not change.
+		
+			setPowerDirty(portal.getDimension(), handle);
+		
+			return true;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Gets the specified portals power.
+	 * 
+	 * @param portal
+	 * The {@link Portal} to get the power for.
+	 * @return
+	 * The portals power or <code>0</code>.
+	 */
+	public static int getPower(Portal portal)
+	{
+		if (portal == null) return 0;
+		
+		// Registered instances (e.g. from getPortalAt()) don't need the lock.
+		int power = handles.readPower(portal);
+		if (power >= 0) return power;
+		
+		lock.readLock().lock();
+		
+		try
+		{
+			portal = getRegisteredInstance(portal);
+		
+			return (portal != null) ? handles.getPower(portal.getHandle()) : 0;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Triggers comparator update for all power gauge of the specified portal.
+	 * 
+	 * @param world
+	 * The {@link ServerLevel} the portal is located in.
+	 * @param portal
+	 * The {@link Portal}.
+	 */
+	public static void updatePowerGauges(ServerLevel world, Portal portal)
+	{
+		if (world == null | portal == null) return;
+		
+		List<BlockPos> gaugePositions = getPowerGauges(portal);
+		
+		for (BlockPos pos : gaugePositions)
+		{
+			world.updateNeighbourForOutputSignal(pos, SimplePortals.blockPowerGauge);
+		}
+	}
+	
+	/**
+	 * Generates an address block id for the specified block.
+	 * 
+	 * @param block
+	 * The {@link Block} to generate the address id for.
+	 * @return
+	 * A string of the format "registryName#meta" or <code>null</code>
+	 * if <code>blockState</code> is <code>null</code>.
+	 */
+	public static String getAddressBlockId(Block block)
+	{
+		if (block == null) return null;
+
+		return Registry.BLOCK.getKey(block).toString();
+	}
+	
+	/**
+	 * Destroys the specified portals' portal blocks (the center).
+	 * 
+	 * @param world
+	 * The {@link ServerLevel} the portal is located in.
+	 * @param portal
+	 * The {@link Portal}.
+	 */
+	private static void destroyPortalBlocks(ServerLevel world, Portal portal)
+	{
+		for (BlockPos portalPos : portal.getPortalPositions())
+		{
+			world.destroyBlock(portalPos, false);
+		}
+	}
+	
+	/**
+	 * Gets the distance between 2 positions.
+	 * 
+	 * @param pos1
+	 * The first {@link BlockPos}.
+	 * @param pos2
+	 * The second {@link BlockPos}.
+	 * @return
+	 * The distance or <code>-1</code> if either position was <code>null</code>.
+	 */
+	private static int getDistance(BlockPos pos1, BlockPos pos2)
+	{
+		if (pos1 == null || pos2 == null) return -1;
+		
+		return Math.abs(pos1.getX() - pos2.getX() + pos1.getY() - pos2.getY() + pos1.getZ() - pos2.getZ()) + 1;
+	}
+	
+	/**
+	 * Find a corner starting at the specified position.
+	 * 
+	 * @param world
+	 * The {@link ServerLevel}.
+	 * @param startPos
+	 * The starting {@link BlockPos}.
+	 * @param searchDir
+	 * The direction to search in.
+	 * @param cornerFacing
+	 * One of the directions the corner is enclosed by.
+	 * @return
+	 * A {@link Corner} or <code>null</code> if one of the parameters was <code>null</code> or
+	 * no corner could be found.
+	 */
+	private static Corner findCorner(ServerLevel world, BlockPos startPos, Direction searchDir, Direction cornerFacing)
+	{
+		if (startPos == null || searchDir == null || cornerFacing == null) return null;
+		
+		BlockPos currentPos = startPos;
+		int size = 0;
+		
+		do
+		{
+			if (!isPortalFrame(world, currentPos))
+			{
+				if (isPortalFrame(world, currentPos.relative(cornerFacing)))
+				{
+					return new Corner(currentPos, searchDir.getOpposite(), cornerFacing);
+				}
+				
+				break;
+			}
+			
+			currentPos = currentPos.relative(searchDir);
+			size++;
+		}
+		while (size <= Settings.maxSize - 1);
+		
+		return null;
+	}
+	
+	/**
+	 * Registers the specified portal. 
+	 * 
+	 * @param world
+	 * The {@link ServerLevel}.
+	 * @param portal
+	 * The {@link Portal} to register.
+	 * @param powerGauges
+	 * The power gauges that are part or the portal.
+	 */
+	private static void register(ServerLevel world, Portal portal, List<BlockPos> powerGauges)
+	{
+		if (world == null || portal == null) return;
+
+		lock.writeLock().lock();
+		
+		try
+		{
+			addToRegistry(world, portal, powerGauges);
+			version++;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		
+		updatePowerGauges(world, portal);
+	}
+	
+	/**
+	 * Unregisters the specified portal.
+	 * 
+	 * @param world
+	 * The {@link ServerLevel}.
+	 * @param portal
+	 * The {@link Portal} to unregister.
+	 */
+	private static void unregister(ServerLevel world, Portal portal)
+	{
+		if (world == null || portal == null) return;
+		
+		List<BlockPos> gaugePositions;
+		
+		lock.writeLock().lock();
+		
+		try
+		{
+			gaugePositions = removeFromRegistry(portal);
+			if (gaugePositions == null) return;
+			
+			version++;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		
+		for (BlockPos pos : gaugePositions)
+		{
+			world.updateNeighbourForOutputSignal(pos, SimplePortals.blockPowerGauge);
+		}
+	}
+	
+	/**
+	 * Adds the specified portal to all registry structures and marks it for saving.
+	 * Callers must hold the write lock. Without a world, none of the portals chunks
+	 * count as loaded.
+	 */
+	private static void addToRegistry(ServerLevel world, Portal portal, List<BlockPos> powerGauges)
+	{
+		PortalSpatialIndex index = portals.computeIfAbsent(portal.getDimension(), dimension -> new PortalSpatialIndex());
+		index.add(portal);
+		changedDimensions.add(portal.getDimension());
+		
+		// The chunks of new portals may have been loaded before they contained a portal.
+		
+		BoundingBox bounds = portal.getBounds();
+		
+		for (int chunkX = SectionPos.blockToSectionCoord(bounds.minX()); chunkX <= SectionPos.blockToSectionCoord(bounds.maxX()); chunkX++)
+		{
+			for (int chunkZ = SectionPos.blockToSectionCoord(bounds.minZ()); chunkZ <= SectionPos.blockToSectionCoord(bounds.maxZ()); chunkZ++)
+			{
+				if (world != null && world.hasChunk(chunkX, chunkZ)) index.chunkLoaded(chunkX, chunkZ);
+			}
+		}
+		
+		addresses.put(portal.getAddress(), portal);
+		directory.computeIfAbsent(portal.getAddress(), address -> HashMultiset.create()).add(portal.getDimension());
+		
+		int handle = handles.allocate(portal);
+		handles.setGauges(handle, powerGauges);
+		
+		// Trigger save of portal data
+		
+		setPortalDirty(portal.getDimension(), handle);
+	}
+	
+	/**
+	 * Removes the specified portal from all registry structures and marks it for saving.
+	 * Callers must hold the write lock.
+	 * 
+	 * @return
+	 * The power gauge positions of the removed portal or <code>null</code> if the portal
+	 * was not registered.
+	 */
+	private static List<BlockPos> removeFromRegistry(Portal portal)
+	{
+		portal = getRegisteredInstance(portal);
+		if (portal == null) return null;
+
+		PortalSpatialIndex index = portals.get(portal.getDimension());
+
+		if (index != null)
+		{
+			index.remove(portal);
+			changedDimensions.add(portal.getDimension());
+
+			if (index.isEmpty()) portals.remove(portal.getDimension());
+		}
+		
+		removeAddress(portal);
+		removeFromDirectory(portal);
+		PortalDestinationCache.remove(portal);
+		
+		int handle = portal.getHandle();
+		List<BlockPos> gaugePositions = handles.getGauges(handle);
+		handles.release(handle);
+		
+		// Trigger save of portal data
+		
+		setPortalDirty(portal.getDimension(), handle);
+		
+		return gaugePositions;
+	}
+	
+	/**
+	 * Removes the specified portal from the address map. The address is released from the
+	 * {@link AddressPool} once no registered portal uses it anymore.
+	 * Callers must hold the write lock.
+	 */
+	private static void removeAddress(Portal portal)
+	{
+		addresses.remove(portal.getAddress(), portal);
+		releaseAddress(portal.getAddress());
+	}
+	
+	/**
+	 * Releases the specified address from the {@link AddressPool} if no registered portal uses it.
+	 * Callers must hold the write lock.
+	 */
+	private static void releaseAddress(Address address)
+	{
+		if (address != null && !addresses.containsKey(address)) AddressPool.remove(address);
+	}
+	
+	/**
+	 * Releases the addresses of portals that were read but not registered (e.g. because they
+	 * failed a check) from the {@link AddressPool}, unless registered portals use them.
+	 * 
+	 * @param droppedPortals
+	 * The portals that were not registered. Registered portals are ignored.
+	 */
+	public static void releaseAddresses(Collection<Portal> droppedPortals)
+	{
+		if (droppedPortals == null || droppedPortals.isEmpty()) return;
+		
+		lock.writeLock().lock();
+		
+		try
+		{
+			for (Portal portal : droppedPortals)
+			{
+				if (portal != null) releaseAddress(portal.getAddress());
+			}
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Removes one entry of the portals dimension from the address directory.
+	 */
+	private static void removeFromDirectory(Portal portal)
+	{
+		Multiset<ResourceKey<Level>> dimensions = directory.get(portal.getAddress());
+		if (dimensions == null) return;
+		
+		dimensions.remove(portal.getDimension());
+		if (dimensions.isEmpty()) directory.remove(portal.getAddress());
+	}
+	
+	/**
+	 * Adds a portal read from saved data to the spatial index and the address maps.
+	 * Callers must hold the write lock.
+	 */
+	private static void addLoadedPortal(Portal portal)
+	{
+		portals.computeIfAbsent(portal.getDimension(), dimension -> new PortalSpatialIndex()).add(portal);
+		changedDimensions.add(portal.getDimension());
+		addresses.put(portal.getAddress(), portal);
+		
+		// Dimensions that were loaded before already have their portals in the directory.
+		if (!knownDimensions.contains(portal.getDimension()))
+		{
+			directory.computeIfAbsent(portal.getAddress(), address -> HashMultiset.create()).add(portal.getDimension());
+		}
+	}
+	
+	/**
+	 * Checks a portal read from saved data and adds it to the registry. Dropped and repaired
+	 * entries are collected in the current {@link PortalLoadCheck}.<br>
+	 * Callers must hold the write lock.
+	 * 
+	 * @return
+	 * The handle assigned to the portal or <code>-1</code> if the portal was dropped.
+	 */
+	private static int addSavedPortal(Portal portal, int savedHandle, int power, List<BlockPos> powerGauges)
+	{
+		if (loadCheck == null) loadCheck = new PortalLoadCheck();
+		
+		if (!loadCheck.isValid(portal))
+		{
+			if (portal != null) releaseAddress(portal.getAddress());
+			return PortalHandles.NO_HANDLE;
+		}
+		
+		// The address is the canonical instance of the registered duplicate, so it stays in the pool.
+		if (getRegisteredInstance(portal) != null)
+		{
+			loadCheck.addDuplicate();
+			return PortalHandles.NO_HANDLE;
+		}
+		
+		int handle = handles.allocate(portal, loadCheck.checkHandle(savedHandle, handles.getHighWaterMark()));
+		handles.setGauges(handle, loadCheck.checkGauges(portal, powerGauges));
+		handles.setPower(handle, loadCheck.checkPower(power));
+		
+		addLoadedPortal(portal);
+		loadCheck.addLoaded();
+		
+		return handle;
+	}
+	
+	/**
+	 * Marks the save segment of the specified dimension that contains the portal with the
+	 * specified handle for saving.
+	 */
+	private static void setPortalDirty(ResourceKey<Level> dimension, int handle)
+	{
+		storage.setPortalDirty(dimension, handle);
+	}
+	
+	/**
+	 * Marks the power of the portal with the specified handle for saving.
+	 */
+	private static void setPowerDirty(ResourceKey<Level> dimension, int handle)
+	{
+		storage.setPowerDirty(dimension, handle);
+	}
+	
+	/**
+	 * Gets the instance of the specified portal that is stored in the registry.<br>
+	 * Per portal data is stored by handle, so portals that were not obtained from the
+	 * registry have to be resolved first. For registered instances this is just a check
+	 * of the portals handle.<br>
+	 * Callers must hold the lock.
+	 * 
+	 * @param portal
+	 * The {@link Portal} to resolve.
+	 * @return
+	 * The registered {@link Portal} or <code>null</code> if it's not registered.
+	 */
+	private static Portal getRegisteredInstance(Portal portal)
+	{
+		if (portal == null) return null;
+		if (handles.getPortal(portal.getHandle()) == portal) return portal;
+		
+		// The snapshot may be rebuilt in the middle of a change, so use the index directly.
+		PortalSpatialIndex index = portals.get(portal.getDimension());
+		List<Portal> candidates = (index != null) ? index.get(portal.getCorner1().getPos()) : Collections.emptyList();
+		
+		for (Portal candidate : candidates)
+		{
+			if (candidate == portal) return candidate;
+		}
+		
+		for (Portal candidate : candidates)
+		{
+			if (candidate.equals(portal)) return candidate;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Checks if the block at the specified position is 
+	 * a portal frame.
+	 * 
+	 * @param world
+	 * The {@link ServerLevel}.
+	 * @param pos
+	 * The {@link BlockPos} to check.
+	 * @return
+	 * <code>true</code> if the block is a portal frame (power gauges also count as part of the frame), otherwise <code>false</code>.
+	 */
+	private static boolean isPortalFrame(ServerLevel world, BlockPos pos)
+	{
+		if (world == null || pos == null) return false;
+		
+		Block block = world.getBlockState(pos).getBlock();
+
+		return (block == SimplePortals.blockPortalFrame || block == SimplePortals.blockPowerGauge);
+	}
+	
+	/**
+	 * Checks if the specified block can be used in a portal address.<br>
+	 * Valid blocks may not have TileEntities and must be full blocks.
+	 * 
+	 * @param state
+	 * The {@link BlockState} of the block to check.
+	 * @return
+	 * <code>true</code> if the block is valid, otherwise <code>false</code>.
+	 */
+	private static boolean isValidAddressBlock(BlockState state)
+	{
+		return (state != null && !state.hasBlockEntity() && !state.isAir());
+	}
+	
+	/**
+	 * Gets the number of save segments needed to store all portals of the specified dimension.
+	 */
+	public static int getSaveSegmentCount(ResourceKey<Level> dimension)
+	{
+		lock.readLock().lock();
+		
+		try
+		{
+			Portal portal;
+			
+			for (int handle = handles.getHighWaterMark() - 1; handle >= 0; handle--)
+			{
+				portal = handles.getPortal(handle);
+				if (portal != null && portal.getDimension() == dimension) return handle / SAVE_SEGMENT_SIZE + 1;
+			}
+			
+			return 0;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Takes a snapshot of all portals of a dimension in the specified save segment. The
+	 * snapshot can be written to NBT on any thread.
+	 * 
+	 * @param dimension
+	 * The dimension the portals are in.
+	 * @param segment
+	 * The index of the save segment.
+	 * @return
+	 * The {@link PortalSegmentSnapshot} of the segment.
+	 */
+	public static PortalSegmentSnapshot snapshotSegment(ResourceKey<Level> dimension, int segment)
+	{
+		lock.readLock().lock();
+		
+		try
+		{
+			int start = segment * SAVE_SEGMENT_SIZE;
+			int end = Math.min(start + SAVE_SEGMENT_SIZE, handles.getHighWaterMark());
+			
+			return PortalSegmentSnapshot.of(handles, start, end, dimension);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Gets the handle of the specified portal. Handles identify portals in the calls to
+	 * the {@link PortalStorage}.
+	 * 
+	 * @param portal
+	 * A {@link Portal}.
+	 * @return
+	 * The handle of the portal or <code>-1</code> if the portal is not registered.
+	 */
+	public static int getHandle(Portal portal)
+	{
+		if (portal == null) return PortalHandles.NO_HANDLE;
+		
+		lock.readLock().lock();
+		
+		try
+		{
+			portal = getRegisteredInstance(portal);
+			
+			return (portal != null) ? portal.getHandle() : PortalHandles.NO_HANDLE;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Takes a snapshot of the portals with the specified handles. Handles that are no longer
+	 * assigned to a portal in the specified dimension are skipped.
+	 * 
+	 * @param dimension
+	 * The dimension the portals are in.
+	 * @param portalHandles
+	 * The handles of the portals.
+	 * @return
+	 * The {@link PortalSegmentSnapshot} of the portals.
+	 */
+	public static PortalSegmentSnapshot snapshotPortals(ResourceKey<Level> dimension, IntCollection portalHandles)
+	{
+		lock.readLock().lock();
+		
+		try
+		{
+			return PortalSegmentSnapshot.of(handles, portalHandles, dimension);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Adds a portal read by a {@link PortalStorage} to the registry, without marking anything
+	 * for saving. Invalid and already registered portals are dropped. The storage has to call
+	 * {@link #onDimensionLoaded(ResourceKey)} once all portals of the dimension are loaded,
+	 * lookups that don't take the lock (see {@link #getSnapshot()}) only see them after that.
+	 * 
+	 * @param portal
+	 * The loaded {@link Portal}.
+	 * @param savedHandle
+	 * The handle the portal was saved with. The portal keeps it if it is still free.
+	 * @param power
+	 * The power of the portal.
+	 * @param powerGauges
+	 * The positions of the portals power gauges.
+	 * @return
+	 * The handle assigned to the portal or <code>-1</code> if the portal was dropped.
+	 */
+	public static int loadPortal(Portal portal, int savedHandle, int power, List<BlockPos> powerGauges)
+	{
+		lock.writeLock().lock();
+		
+		try
+		{
+			return addSavedPortal(portal, savedHandle, power, powerGauges);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Gets the first and fourth corner positions and the power of the portals with the specified
+	 * handles. Handles that are no longer assigned to a portal in the specified dimension are skipped.
+	 * 
+	 * @param dimension
+	 * The dimension the portals are in.
+	 * @param portalHandles
+	 * The handles of the portals.
+	 * @param corners1
+	 * Receives the packed positions of the first corners (see {@link BlockPos#asLong()}).
+	 * @param corners4
+	 * Receives the packed positions of the fourth corners, in the same order.
+	 * @param power
+	 * Receives the power of the portals, in the same order as the positions.
+	 */
+	public static void getPowerRecords(ResourceKey<Level> dimension, IntCollection portalHandles, LongList corners1, LongList corners4, IntList power)
+	{
+		if (portalHandles == null || corners1 == null || corners4 == null || power == null) return;
+		
+		lock.readLock().lock();
+		
+		try
+		{
+			Portal portal;
+			
+			for (IntIterator iterator = portalHandles.iterator(); iterator.hasNext();)
+			{
+				int handle = iterator.nextInt();
+				portal = handles.getPortal(handle);
+				if (portal == null || portal.getDimension() != dimension) continue;
+				
+				corners1.add(portal.getCorner1().getPos().asLong());
+				corners4.add(portal.getCorner4().getPos().asLong());
+				power.add(handles.getPower(handle));
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Sets the power of the portal with the specified first and fourth corner. Used to
+	 * replay the power journal, so nothing gets marked for saving.
+	 * 
+	 * @param dimension
+	 * The dimension the portal is in.
+	 * @param corner1
+	 * The position of the portals first corner.
+	 * @param corner4
+	 * The position of the portals fourth corner.
+	 * @param amount
+	 * The power of the portal.
+	 * @return
+	 * <code>true</code> if the portal was found, otherwise <code>false</code>.
+	 */
+	public static boolean restorePower(ResourceKey<Level> dimension, BlockPos corner1, BlockPos corner4, int amount)
+	{
+		if (corner1 == null || corner4 == null) return false;
+		
+		lock.writeLock().lock();
+		
+		try
+		{
+			PortalSpatialIndex index = portals.get(dimension);
+			if (index == null) return false;
+			
+			// Portals can share frame blocks, so the first corner alone does not identify a portal.
+			for (Portal portal : index.get(corner1))
+			{
+				if (portal.getCorner1().getPos().equals(corner1) && portal.getCorner4().getPos().equals(corner4))
+				{
+					handles.setPower(portal.getHandle(), amount);
+					return true;
+				}
+			}
+			
+			return false;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Reads the data of all portals in a save segment from a NBT compound tag and adds
+	 * the portals to the registry. Portals keep the handles they were saved with, if
+	 * those are still free.
+	 * 
+	 * @param nbt
+	 * The {@link CompoundTag} to read the portal data from.
+	 * @return
+	 * <code>true</code> if all portals kept their handles, <code>false</code> if some
+	 * of them were moved and the segments need to be rewritten.
+	 */
+	public static boolean readSegmentFromNBT(CompoundTag nbt)
+	{
+		if (nbt == null || !CompactPortalFormat.isCompact(nbt)) return true;
+		
+		lock.writeLock().lock();
+		
+		try
+		{
+			// Handles may have been taken in the meantime if the dimension was unloaded before.
+			boolean[] handlesKept = { true };
+			
+			CompactPortalFormat.read(nbt, (portal, savedHandle, power, gaugePositions) -> {
+				int handle = addSavedPortal(portal, savedHandle, power, gaugePositions);
+				
+				if (handle != PortalHandles.NO_HANDLE && handle != savedHandle) handlesKept[0] = false;
+			});
+			
+			version++;
+			
+			return handlesKept[0];
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Reads portal data in the old single file format from a NBT compound tag, if there is any.
+	 * The old format contains the portals of all dimensions.
+	 * 
+	 * @param nbt
+	 * The {@link CompoundTag} to read the registry data from.
+	 * @param skippedDimensions
+	 * Dimensions whose portals should not be read, because they were already converted.
+	 * @return
+	 * The dimensions portals were read for (may be empty).
+	 */
+	public static Set<ResourceKey<Level>> readFromNBT(CompoundTag nbt, Set<ResourceKey<Level>> skippedDimensions)
+	{
+		if (nbt == null || !nbt.contains("portalBlocks")) return Collections.emptySet();
+		
+		CompoundTag portalsTag = nbt.getCompound("portals");
+		CompoundTag portalBlocksTag = nbt.getCompound("portalBlocks");
+		CompoundTag powerTag = nbt.getCompound("power");
+		
+		int i = 0;
+		String key;
+		CompoundTag tag;
+		Portal portal;
+		
+		// Get the portals and their IDs. The portal tags don't depend on each other,
+		// so they are parsed in parallel. Nothing here touches the registry, so the
+		// lock is only taken once the portals get added.
+		
+		List<CompoundTag> portalTags = new ArrayList<>();
+		
+		while(portalsTag.contains(key = String.valueOf(i++)))
+		{
+			portalTags.add(portalsTag.getCompound(key));
+		}
+		
+		Portal[] parsedPortals = portalTags.parallelStream().map(Portal::deserializeNBT).toArray(Portal[]::new);
+		HashMap<Integer, Portal> portalIDs = Maps.newHashMapWithExpectedSize(parsedPortals.length);
+		
+		for (i = 0; i < parsedPortals.length; i++)
+		{
+			portalIDs.put(i, parsedPortals[i]);
+		}
+		
+		List<Portal> skippedPortals = new ArrayList<>();
+		
+		portalIDs.values().removeIf(p -> {
+			if (p != null && skippedDimensions.contains(p.getDimension())) skippedPortals.add(p);
+			return (p == null || skippedDimensions.contains(p.getDimension()));
+		});
+		
+		// Deserialization of power gauge positions. All other positions are
+		// regenerated from the portals geometry.
+		
+		i = 0;
+		int x = 0;
+		String subKey;
+		BlockPos portalPos;
+		boolean isGauge;
+		
+		ListMultimap<Portal, BlockPos> gauges = ArrayListMultimap.create();
+		
+		while (portalBlocksTag.contains(key = String.valueOf(i++)))
+		{
+			tag = portalBlocksTag.getCompound(key);
+			
+			portalPos = BlockPos.of(tag.getLong("pos"));
+			isGauge = tag.getBoolean("isGauge");
+			
+			while (isGauge && tag.contains(subKey = "portal" + x++))
+			{
+				// IDs without a portal are left over from portals that were not saved.
+				portal = portalIDs.get(tag.getInt(subKey));
+				if (portal != null) gauges.put(portal, portalPos);
+			}
+			
+			x = 0;
+		}
+		
+		lock.writeLock().lock();
+		
+		try
+		{
+			version++;
+			
+			// Regeneration of the spatial index and the Address to Portal map. Also
+			// assigns the handles and restores the power.
+		
+			Set<ResourceKey<Level>> dimensions = new HashSet<>();
+			
+			for (Map.Entry<Integer, Portal> entry : portalIDs.entrySet())
+			{
+				portal = entry.getValue();
+				int power = powerTag.getInt(String.valueOf(entry.getKey()));
+				
+				if (addSavedPortal(portal, PortalHandles.NO_HANDLE, power, gauges.get(portal)) != PortalHandles.NO_HANDLE)
+				{
+					dimensions.add(portal.getDimension());
+				}
+			}
+			
+			// Portals of converted dimensions are loaded from their own data.
+			for (Portal skipped : skippedPortals) releaseAddress(skipped.getAddress());
+			
+			return dimensions;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+}
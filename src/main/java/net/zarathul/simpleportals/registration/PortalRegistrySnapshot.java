@@ -0,0 +1,199 @@
+package net.zarathul.simpleportals.registration;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multimaps;
+import net.minecraft.core.BlockPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable view of all registered portals at a specific registry version.<br>
+ * The registry hands out the same snapshot until portals get registered or unregistered,
+ * so callers can hold on to it and compare {@link #getVersion()} with
+ * {@link PortalRegistry#getVersion()} to find out if anything changed.<br>
+ * Every dimension has its own copy of the registries {@link PortalSpatialIndex}, so point
+ * lookups don't need the registry lock (see {@link PortalRegistry#getPortalAt}). A new
+ * snapshot only copies the dimensions that changed and shares all others with the previous one.<br>
+ * Note: Portal power is not part of the snapshot, it changes too often.
+ */
+public final class PortalRegistrySnapshot
+{
+	static final PortalRegistrySnapshot EMPTY = new PortalRegistrySnapshot(-1, ImmutableMap.of());
+
+	private static final PortalSpatialIndex EMPTY_INDEX = new PortalSpatialIndex();
+
+	private final long version;
+	private final ImmutableMap<ResourceKey<Level>, DimensionView> dimensions;
+	private final Supplier<ImmutableList<Portal>> portals;
+	private final Supplier<ImmutableListMultimap<Address, Portal>> addresses;
+	private final Supplier<ImmutableListMultimap<BlockPos, Portal>> positions;
+
+	private PortalRegistrySnapshot(long version, ImmutableMap<ResourceKey<Level>, DimensionView> dimensions)
+	{
+		this.version = version;
+		this.dimensions = dimensions;
+		// The lists spanning all dimensions are only needed by commands and exports, so they are built on demand.
+		this.portals = Suppliers.memoize(() -> {
+			ImmutableList.Builder<Portal> builder = ImmutableList.builder();
+			for (DimensionView dimension : dimensions.values()) builder.addAll(dimension.portals.get());
+
+			return builder.build();
+		});
+		this.addresses = Suppliers.memoize(() -> Multimaps.index(portals.get(), Portal::getAddress));
+		// Generating all positions is expensive and rarely needed, so it only happens on demand.
+		this.positions = Suppliers.memoize(() -> {
+			ImmutableListMultimap.Builder<BlockPos, Portal> builder = ImmutableListMultimap.builder();
+
+			for (Portal portal : portals.get())
+			{
+				for (BlockPos pos : portal.getAllPositions())
+				{
+					builder.put(pos.immutable(), portal);
+				}
+			}
+
+			return builder.build();
+		});
+	}
+
+	/**
+	 * Creates the snapshot for a newer registry version. Dimensions that changed since this
+	 * snapshot was taken get copied from the registry, all others are taken over as they are.
+	 * Callers must hold the registry lock.
+	 *
+	 * @param newVersion
+	 * The current registry version.
+	 * @param indexes
+	 * The spatial indexes of all dimensions in the registry.
+	 * @param changedDimensions
+	 * The dimensions whose portals changed since this snapshot was taken.
+	 * @return
+	 * A new {@link PortalRegistrySnapshot}.
+	 */
+	PortalRegistrySnapshot update(long newVersion, Map<ResourceKey<Level>, PortalSpatialIndex> indexes, Set<ResourceKey<Level>> changedDimensions)
+	{
+		ImmutableMap.Builder<ResourceKey<Level>, DimensionView> builder = ImmutableMap.builder();
+
+		for (Map.Entry<ResourceKey<Level>, PortalSpatialIndex> entry : indexes.entrySet())
+		{
+			DimensionView dimension = changedDimensions.contains(entry.getKey()) ? null : dimensions.get(entry.getKey());
+
+			builder.put(entry.getKey(), (dimension != null) ? dimension : new DimensionView(entry.getValue().copy()));
+		}
+
+		return new PortalRegistrySnapshot(newVersion, builder.build());
+	}
+
+	/**
+	 * Gets the registry version this snapshot was taken at.
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * Determines if the registry changed since this snapshot was taken.
+	 */
+	public boolean isStale()
+	{
+		return (version != PortalRegistry.getVersion());
+	}
+
+	/**
+	 * Gets all portals in every dimension.
+	 */
+	public List<Portal> getAllPortals()
+	{
+		return portals.get();
+	}
+
+	/**
+	 * Gets all portals in the specified dimension.
+	 */
+	public List<Portal> getPortalsInDimension(ResourceKey<Level> dimension)
+	{
+		DimensionView view = dimensions.get(dimension);
+
+		return (view != null) ? view.portals.get() : Collections.emptyList();
+	}
+
+	/**
+	 * Gets all portals and their addresses.
+	 */
+	public ImmutableListMultimap<Address, Portal> getAddresses()
+	{
+		return addresses.get();
+	}
+
+	/**
+	 * Gets all portals and their positions. The map is generated from the portals
+	 * geometry on the first call.
+	 */
+	public ImmutableListMultimap<BlockPos, Portal> getPortals()
+	{
+		return positions.get();
+	}
+
+	/**
+	 * Gets the portals at the specified position in the specified dimension.
+	 *
+	 * @return
+	 * A shared read-only list of portals (may be empty).
+	 */
+	public List<Portal> getPortalsAt(BlockPos pos, ResourceKey<Level> dimension)
+	{
+		return getSpatialIndex(dimension).get(pos);
+	}
+
+	/**
+	 * Gets the first portal at the specified position in the specified dimension.
+	 *
+	 * @return
+	 * The first found {@link Portal} or <code>null</code>.
+	 */
+	public Portal getPortalAt(BlockPos pos, ResourceKey<Level> dimension)
+	{
+		return getSpatialIndex(dimension).getFirst(pos);
+	}
+
+	/**
+	 * Determines if there is a portal at the specified position in the specified dimension.
+	 */
+	public boolean isPortalAt(BlockPos pos, ResourceKey<Level> dimension)
+	{
+		return getSpatialIndex(dimension).contains(pos);
+	}
+
+	private PortalSpatialIndex getSpatialIndex(ResourceKey<Level> dimension)
+	{
+		DimensionView view = dimensions.get(dimension);
+
+		return (view != null) ? view.index : EMPTY_INDEX;
+	}
+
+	/**
+	 * The portals of a single dimension. The index copy is never modified, so it can be
+	 * shared between threads and snapshots.
+	 */
+	private static final class DimensionView
+	{
+		private final PortalSpatialIndex index;
+		private final Supplier<ImmutableList<Portal>> portals;
+
+		private DimensionView(PortalSpatialIndex index)
+		{
+			this.index = index;
+			this.portals = Suppliers.memoize(index::getAll);
+		}
+	}
+}
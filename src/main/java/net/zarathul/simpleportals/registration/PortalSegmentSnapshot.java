@@ -0,0 +1,139 @@
+package net.zarathul.simpleportals.registration;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntCollection;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import net.minecraft.core.BlockPos;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable copy of the data of all portals in a save segment or any other set of portals.<br>
+ * Taking the snapshot only copies references and primitives, so it is cheap enough for
+ * the server thread. Building the NBT data from it can happen on any thread.
+ */
+public final class PortalSegmentSnapshot
+{
+	final int[] handles;
+	final Portal[] portals;
+	final int[] power;
+	final List<List<BlockPos>> gauges;
+
+	private PortalSegmentSnapshot(int[] handles, Portal[] portals, int[] power, List<List<BlockPos>> gauges)
+	{
+		this.handles = handles;
+		this.portals = portals;
+		this.power = power;
+		this.gauges = gauges;
+	}
+
+	/**
+	 * Copies the data of all portals of a dimension with handles in the range <code>[from, to)</code>.
+	 */
+	static PortalSegmentSnapshot of(PortalHandles source, int from, int to, ResourceKey<Level> dimension)
+	{
+		int count = 0;
+
+		for (int handle = from; handle < to; handle++)
+		{
+			if (isIncluded(source, handle, dimension)) count++;
+		}
+
+		int[] handles = new int[count];
+		Portal[] portals = new Portal[count];
+		int[] power = new int[count];
+		List<List<BlockPos>> gauges = new ArrayList<>(count);
+		int i = 0;
+
+		for (int handle = from; handle < to; handle++)
+		{
+			if (!isIncluded(source, handle, dimension)) continue;
+
+			handles[i] = handle;
+			portals[i] = source.getPortal(handle);
+			power[i++] = source.getPower(handle);
+			// Gauge lists are immutable, so they don't need to be copied.
+			gauges.add(source.getGauges(handle));
+		}
+
+		return new PortalSegmentSnapshot(handles, portals, power, gauges);
+	}
+
+	/**
+	 * Copies the data of all portals of a dimension with the specified handles.
+	 */
+	static PortalSegmentSnapshot of(PortalHandles source, IntCollection portalHandles, ResourceKey<Level> dimension)
+	{
+		IntArrayList handles = new IntArrayList(portalHandles.size());
+
+		for (IntIterator iterator = portalHandles.iterator(); iterator.hasNext();)
+		{
+			int handle = iterator.nextInt();
+			if (isIncluded(source, handle, dimension)) handles.add(handle);
+		}
+
+		Portal[] portals = new Portal[handles.size()];
+		int[] power = new int[handles.size()];
+		List<List<BlockPos>> gauges = new ArrayList<>(handles.size());
+
+		for (int i = 0; i < handles.size(); i++)
+		{
+			int handle = handles.getInt(i);
+			portals[i] = source.getPortal(handle);
+			power[i] = source.getPower(handle);
+			gauges.add(source.getGauges(handle));
+		}
+
+		return new PortalSegmentSnapshot(handles.toIntArray(), portals, power, gauges);
+	}
+
+	private static boolean isIncluded(PortalHandles source, int handle, ResourceKey<Level> dimension)
+	{
+		Portal portal = source.getPortal(handle);
+
+		return (portal != null && portal.getDimension() == dimension);
+	}
+
+	/**
+	 * Gets the number of portals in the snapshot.
+	 */
+	public int size()
+	{
+		return handles.length;
+	}
+
+	public int getHandle(int index)
+	{
+		return handles[index];
+	}
+
+	public Portal getPortal(int index)
+	{
+		return portals[index];
+	}
+
+	public int getPower(int index)
+	{
+		return power[index];
+	}
+
+	public List<BlockPos> getGauges(int index)
+	{
+		return gauges.get(index);
+	}
+
+	/**
+	 * Writes the snapshot to a NBT compound tag (see {@link CompactPortalFormat}).
+	 *
+	 * @param nbt
+	 * The {@link CompoundTag} to save the portal data in.
+	 */
+	public void writeToNBT(CompoundTag nbt)
+	{
+		if (nbt != null) CompactPortalFormat.write(this, nbt);
+	}
+}
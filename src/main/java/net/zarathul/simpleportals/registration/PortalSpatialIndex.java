@@ -0,0 +1,521 @@
+package net.zarathul.simpleportals.registration;
+
+import com.google.common.collect.ImmutableList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.levelgen.structure.BoundingBox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Spatial index for the portals of a single dimension.<br>
+ * Every portal is stored once and described by its bounding box (see {@link Portal#getBounds()}).
+ * The index keeps a small array of portals for every chunk column a portals bounding box touches,
+ * so memory grows with the number of portals instead of their area. Point lookups scan the
+ * (usually tiny) bucket of the chunk the position is in.<br>
+ * Positions that belong to more than one portal (shared frame blocks) are precomputed, so
+ * lookups can hand out a shared read-only list without allocating.<br>
+ * The index also tracks which of the chunks that contain portals are loaded. This is
+ * driven by the chunk load and unload events (see {@link PortalRegistry#onChunkLoad}).
+ */
+final class PortalSpatialIndex
+{
+	private final Long2ObjectOpenHashMap<Portal[]> buckets;
+	private final Long2ObjectOpenHashMap<List<Portal>> sharedPositions;
+	private final LongOpenHashSet loadedChunks;
+
+	PortalSpatialIndex()
+	{
+		buckets = new Long2ObjectOpenHashMap<>();
+		sharedPositions = new Long2ObjectOpenHashMap<>();
+		loadedChunks = new LongOpenHashSet();
+	}
+
+	private PortalSpatialIndex(PortalSpatialIndex other)
+	{
+		buckets = other.buckets.clone();
+		sharedPositions = other.sharedPositions.clone();
+		loadedChunks = new LongOpenHashSet();
+	}
+
+	/**
+	 * Creates a copy of the index for lookups only. Buckets and shared position lists are
+	 * replaced instead of modified, so the copy shares them with this index. The loaded
+	 * chunks are not copied.
+	 *
+	 * @return
+	 * A new {@link PortalSpatialIndex}.
+	 */
+	PortalSpatialIndex copy()
+	{
+		return new PortalSpatialIndex(this);
+	}
+
+	/**
+	 * Adds the specified portal to the index.
+	 *
+	 * @param portal
+	 * The {@link Portal} to add.
+	 */
+	void add(Portal portal)
+	{
+		BoundingBox bounds = portal.getBounds();
+		int minChunkX = SectionPos.blockToSectionCoord(bounds.minX());
+		int maxChunkX = SectionPos.blockToSectionCoord(bounds.maxX());
+		int minChunkZ = SectionPos.blockToSectionCoord(bounds.minZ());
+		int maxChunkZ = SectionPos.blockToSectionCoord(bounds.maxZ());
+
+		for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++)
+		{
+			for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++)
+			{
+				long key = ChunkPos.asLong(chunkX, chunkZ);
+				Portal[] bucket = buckets.get(key);
+
+				if (bucket == null)
+				{
+					buckets.put(key, new Portal[] { portal });
+					continue;
+				}
+
+				for (Portal other : bucket)
+				{
+					if (other == portal) return;
+					if (other.getBounds().intersects(bounds)) addSharedPositions(other, portal, chunkX, chunkZ);
+				}
+
+				Portal[] grown = new Portal[bucket.length + 1];
+				System.arraycopy(bucket, 0, grown, 0, bucket.length);
+				grown[bucket.length] = portal;
+				buckets.put(key, grown);
+			}
+		}
+	}
+
+	/**
+	 * Removes the specified portal from the index.
+	 *
+	 * @param portal
+	 * The {@link Portal} to remove.
+	 */
+	void remove(Portal portal)
+	{
+		BoundingBox bounds = portal.getBounds();
+		int minChunkX = SectionPos.blockToSectionCoord(bounds.minX());
+		int maxChunkX = SectionPos.blockToSectionCoord(bounds.maxX());
+		int minChunkZ = SectionPos.blockToSectionCoord(bounds.minZ());
+		int maxChunkZ = SectionPos.blockToSectionCoord(bounds.maxZ());
+
+		for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++)
+		{
+			for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++)
+			{
+				long key = ChunkPos.asLong(chunkX, chunkZ);
+				Portal[] bucket = buckets.get(key);
+
+				if (bucket == null) continue;
+
+				int index = -1;
+
+				// The registry only passes in its own instances, so identity is enough here.
+				for (int i = 0; i < bucket.length; i++)
+				{
+					if (bucket[i] == portal)
+					{
+						index = i;
+						break;
+					}
+				}
+
+				if (index < 0) continue;
+
+				if (bucket.length == 1)
+				{
+					buckets.remove(key);
+					loadedChunks.remove(key);
+					continue;
+				}
+
+				Portal[] shrunk = new Portal[bucket.length - 1];
+				System.arraycopy(bucket, 0, shrunk, 0, index);
+				System.arraycopy(bucket, index + 1, shrunk, index, bucket.length - index - 1);
+				buckets.put(key, shrunk);
+
+				if (!sharedPositions.isEmpty())
+				{
+					for (Portal other : shrunk)
+					{
+						if (other.getBounds().intersects(bounds)) removeSharedPositions(other, portal, chunkX, chunkZ);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the portals at the specified position.
+	 *
+	 * @param pos
+	 * The position to look up.
+	 * @return
+	 * A shared read-only list of portals (may be empty).
+	 */
+	List<Portal> get(BlockPos pos)
+	{
+		if (!sharedPositions.isEmpty())
+		{
+			List<Portal> shared = sharedPositions.get(pos.asLong());
+			if (shared != null) return shared;
+		}
+
+		Portal portal = find(pos);
+
+		return (portal != null) ? portal.asList() : Collections.emptyList();
+	}
+
+	/**
+	 * Gets the first portal at the specified position.
+	 *
+	 * @param pos
+	 * The position to look up.
+	 * @return
+	 * The first found {@link Portal} or <code>null</code>.
+	 */
+	Portal getFirst(BlockPos pos)
+	{
+		if (!sharedPositions.isEmpty())
+		{
+			List<Portal> shared = sharedPositions.get(pos.asLong());
+			if (shared != null) return shared.get(0);
+		}
+
+		return find(pos);
+	}
+
+	/**
+	 * Determines if there is at least one portal at the specified position.
+	 *
+	 * @param pos
+	 * The position to look up.
+	 * @return
+	 * <code>true</code> if a portal was found, otherwise <code>false</code>.
+	 */
+	boolean contains(BlockPos pos)
+	{
+		return (find(pos) != null);
+	}
+
+	/**
+	 * Gets the portals that touch the specified chunk.
+	 *
+	 * @param chunkX
+	 * The x coordinate of the chunk.
+	 * @param chunkZ
+	 * The z coordinate of the chunk.
+	 * @return
+	 * A read-only list of portals (may be empty).
+	 */
+	List<Portal> getInChunk(int chunkX, int chunkZ)
+	{
+		Portal[] bucket = buckets.get(ChunkPos.asLong(chunkX, chunkZ));
+
+		// Buckets are replaced instead of modified, so they can be handed out directly.
+		return (bucket != null) ? Collections.unmodifiableList(Arrays.asList(bucket)) : Collections.emptyList();
+	}
+
+	/**
+	 * Adds all portals that are within the specified distance of a position to a list.
+	 * The distance is measured to the closest block of a portals bounding box.
+	 *
+	 * @param center
+	 * The position to measure from.
+	 * @param radius
+	 * The maximum distance in blocks.
+	 * @param result
+	 * The list to add the found portals to.
+	 */
+	void getWithinRadius(BlockPos center, int radius, List<Portal> result)
+	{
+		int minChunkX = SectionPos.blockToSectionCoord(center.getX() - radius);
+		int maxChunkX = SectionPos.blockToSectionCoord(center.getX() + radius);
+		int minChunkZ = SectionPos.blockToSectionCoord(center.getZ() - radius);
+		int maxChunkZ = SectionPos.blockToSectionCoord(center.getZ() + radius);
+		long radiusSq = (long)radius * radius;
+
+		for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++)
+		{
+			for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++)
+			{
+				Portal[] bucket = buckets.get(ChunkPos.asLong(chunkX, chunkZ));
+
+				if (bucket == null) continue;
+
+				for (Portal portal : bucket)
+				{
+					BoundingBox bounds = portal.getBounds();
+
+					// Portals spanning multiple chunks are only reported from the first
+					// chunk of the searched area they touch.
+					if (Math.max(SectionPos.blockToSectionCoord(bounds.minX()), minChunkX) != chunkX ||
+						Math.max(SectionPos.blockToSectionCoord(bounds.minZ()), minChunkZ) != chunkZ) continue;
+
+					if (distanceSq(bounds, center) <= radiusSq) result.add(portal);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the portal closest to the specified position. Chunks are searched in rings
+	 * around the position, so the search stops as soon as no closer portal is possible.
+	 *
+	 * @param pos
+	 * The position to measure from.
+	 * @param maxDistance
+	 * The maximum distance in blocks.
+	 * @return
+	 * The closest {@link Portal} or <code>null</code> if there is none within <code>maxDistance</code>.
+	 */
+	Portal getNearest(BlockPos pos, int maxDistance)
+	{
+		int centerX = SectionPos.blockToSectionCoord(pos.getX());
+		int centerZ = SectionPos.blockToSectionCoord(pos.getZ());
+		int maxRing = SectionPos.blockToSectionCoord(maxDistance) + 1;
+		long nearestDistanceSq = (long)maxDistance * maxDistance;
+		Portal nearest = null;
+
+		for (int ring = 0; ring <= maxRing; ring++)
+		{
+			// Every block in this ring is at least this far away from pos on the x or z axis.
+			long minDistance = (ring > 0) ? (ring - 1) * 16L + 1 : 0;
+			if (minDistance * minDistance > nearestDistanceSq) break;
+
+			for (int chunkX = centerX - ring; chunkX <= centerX + ring; chunkX++)
+			{
+				// Only the outer columns of the ring are complete, the others only have their ends.
+				int step = (chunkX == centerX - ring || chunkX == centerX + ring) ? 1 : 2 * ring;
+
+				for (int chunkZ = centerZ - ring; chunkZ <= centerZ + ring; chunkZ += step)
+				{
+					Portal[] bucket = buckets.get(ChunkPos.asLong(chunkX, chunkZ));
+
+					if (bucket == null) continue;
+
+					for (Portal portal : bucket)
+					{
+						long distanceSq = distanceSq(portal.getBounds(), pos);
+
+						if (distanceSq < nearestDistanceSq || (nearest == null && distanceSq == nearestDistanceSq))
+						{
+							nearest = portal;
+							nearestDistanceSq = distanceSq;
+						}
+					}
+				}
+			}
+		}
+
+		return nearest;
+	}
+
+	/**
+	 * Marks the specified chunk as loaded, if it contains portals.
+	 */
+	void chunkLoaded(int chunkX, int chunkZ)
+	{
+		long key = ChunkPos.asLong(chunkX, chunkZ);
+
+		if (buckets.containsKey(key)) loadedChunks.add(key);
+	}
+
+	/**
+	 * Marks the specified chunk as unloaded.
+	 */
+	void chunkUnloaded(int chunkX, int chunkZ)
+	{
+		loadedChunks.remove(ChunkPos.asLong(chunkX, chunkZ));
+	}
+
+	/**
+	 * Determines if all chunks the specified portal touches are loaded.
+	 *
+	 * @param portal
+	 * The {@link Portal} to check.
+	 * @return
+	 * <code>true</code> if the whole portal is loaded, otherwise <code>false</code>.
+	 */
+	boolean isLoaded(Portal portal)
+	{
+		BoundingBox bounds = portal.getBounds();
+		int maxChunkX = SectionPos.blockToSectionCoord(bounds.maxX());
+		int maxChunkZ = SectionPos.blockToSectionCoord(bounds.maxZ());
+
+		for (int chunkX = SectionPos.blockToSectionCoord(bounds.minX()); chunkX <= maxChunkX; chunkX++)
+		{
+			for (int chunkZ = SectionPos.blockToSectionCoord(bounds.minZ()); chunkZ <= maxChunkZ; chunkZ++)
+			{
+				if (!loadedChunks.contains(ChunkPos.asLong(chunkX, chunkZ))) return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Gets all portals in the index.
+	 *
+	 * @return
+	 * An immutable list of portals (may be empty).
+	 */
+	ImmutableList<Portal> getAll()
+	{
+		ImmutableList.Builder<Portal> builder = ImmutableList.builder();
+
+		for (Long2ObjectMap.Entry<Portal[]> entry : buckets.long2ObjectEntrySet())
+		{
+			int chunkX = ChunkPos.getX(entry.getLongKey());
+			int chunkZ = ChunkPos.getZ(entry.getLongKey());
+
+			for (Portal portal : entry.getValue())
+			{
+				// Portals spanning multiple chunks are only added from their first chunk.
+				BoundingBox bounds = portal.getBounds();
+
+				if (SectionPos.blockToSectionCoord(bounds.minX()) == chunkX &&
+					SectionPos.blockToSectionCoord(bounds.minZ()) == chunkZ) builder.add(portal);
+			}
+		}
+
+		return builder.build();
+	}
+
+	boolean isEmpty()
+	{
+		return buckets.isEmpty();
+	}
+
+	void clear()
+	{
+		buckets.clear();
+		sharedPositions.clear();
+		loadedChunks.clear();
+	}
+
+	/**
+	 * Scans the bucket of the chunk the specified position is in.
+	 */
+	private Portal find(BlockPos pos)
+	{
+		Portal[] bucket = buckets.get(ChunkPos.asLong(SectionPos.blockToSectionCoord(pos.getX()), SectionPos.blockToSectionCoord(pos.getZ())));
+
+		if (bucket == null) return null;
+
+		for (Portal portal : bucket)
+		{
+			if (portal.getBounds().isInside(pos)) return portal;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Gets the squared distance between the specified position and the closest block of a bounding box.
+	 */
+	private static long distanceSq(BoundingBox bounds, BlockPos pos)
+	{
+		long dx = Math.max(Math.max(bounds.minX() - pos.getX(), pos.getX() - bounds.maxX()), 0);
+		long dy = Math.max(Math.max(bounds.minY() - pos.getY(), pos.getY() - bounds.maxY()), 0);
+		long dz = Math.max(Math.max(bounds.minZ() - pos.getZ(), pos.getZ() - bounds.maxZ()), 0);
+
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * Records all positions in the specified chunk that are part of both portals.
+	 * <code>existing</code> has been in the index before <code>added</code>, so it comes first.
+	 */
+	private void addSharedPositions(Portal existing, Portal added, int chunkX, int chunkZ)
+	{
+		BoundingBox a = existing.getBounds();
+		BoundingBox b = added.getBounds();
+		int minX = Math.max(Math.max(a.minX(), b.minX()), SectionPos.sectionToBlockCoord(chunkX));
+		int maxX = Math.min(Math.min(a.maxX(), b.maxX()), SectionPos.sectionToBlockCoord(chunkX, 15));
+		int minZ = Math.max(Math.max(a.minZ(), b.minZ()), SectionPos.sectionToBlockCoord(chunkZ));
+		int maxZ = Math.min(Math.min(a.maxZ(), b.maxZ()), SectionPos.sectionToBlockCoord(chunkZ, 15));
+		int minY = Math.max(a.minY(), b.minY());
+		int maxY = Math.min(a.maxY(), b.maxY());
+
+		for (int x = minX; x <= maxX; x++)
+		{
+			for (int y = minY; y <= maxY; y++)
+			{
+				for (int z = minZ; z <= maxZ; z++)
+				{
+					long pos = BlockPos.asLong(x, y, z);
+					List<Portal> shared = sharedPositions.get(pos);
+
+					if (shared == null)
+					{
+						sharedPositions.put(pos, ImmutableList.of(existing, added));
+					}
+					else if (!shared.contains(added))
+					{
+						sharedPositions.put(pos, ImmutableList.<Portal>builder().addAll(shared).add(added).build());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes <code>removed</code> from all shared positions in the specified chunk it has in
+	 * common with <code>remaining</code>.
+	 */
+	private void removeSharedPositions(Portal remaining, Portal removed, int chunkX, int chunkZ)
+	{
+		BoundingBox a = remaining.getBounds();
+		BoundingBox b = removed.getBounds();
+		int minX = Math.max(Math.max(a.minX(), b.minX()), SectionPos.sectionToBlockCoord(chunkX));
+		int maxX = Math.min(Math.min(a.maxX(), b.maxX()), SectionPos.sectionToBlockCoord(chunkX, 15));
+		int minZ = Math.max(Math.max(a.minZ(), b.minZ()), SectionPos.sectionToBlockCoord(chunkZ));
+		int maxZ = Math.min(Math.min(a.maxZ(), b.maxZ()), SectionPos.sectionToBlockCoord(chunkZ, 15));
+		int minY = Math.max(a.minY(), b.minY());
+		int maxY = Math.min(a.maxY(), b.maxY());
+
+		for (int x = minX; x <= maxX; x++)
+		{
+			for (int y = minY; y <= maxY; y++)
+			{
+				for (int z = minZ; z <= maxZ; z++)
+				{
+					long pos = BlockPos.asLong(x, y, z);
+					List<Portal> shared = sharedPositions.get(pos);
+
+					if (shared == null || !shared.contains(removed)) continue;
+
+					if (shared.size() <= 2)
+					{
+						sharedPositions.remove(pos);
+					}
+					else
+					{
+						ImmutableList.Builder<Portal> shrunk = ImmutableList.builder();
+
+						for (Portal portal : shared)
+						{
+							if (portal != removed) shrunk.add(portal);
+						}
+
+						sharedPositions.put(pos, shrunk.build());
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package net.zarathul.simpleportals.registration;
+
+import com.google.common.collect.ImmutableList;
+import net.minecraft.SharedConstants;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.core.Direction.Axis;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.level.Level;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Writes portals in the {@link CompactPortalFormat} and compares what is read back with the
+ * saved portals, including the order of the corner facings.
+ */
+public class CompactPortalFormatTest
+{
+	private static final Axis[] AXES = { Axis.X, Axis.Y, Axis.Z };
+
+	@BeforeAll
+	public static void bootstrap()
+	{
+		SharedConstants.tryDetectVersion();
+		Bootstrap.bootStrap();
+	}
+
+	@AfterEach
+	public void reset()
+	{
+		AddressPool.clear();
+	}
+
+	@Test
+	public void portalsSurviveRoundTrip() throws IOException
+	{
+		PortalHandles handles = createHandles(48);
+		// Free handles leave gaps that must not shift the other portals.
+		handles.release(5);
+		handles.release(6);
+
+		for (ResourceKey<Level> dimension : ImmutableList.of(Level.OVERWORLD, Level.NETHER))
+		{
+			PortalSegmentSnapshot snapshot = PortalSegmentSnapshot.of(handles, 0, handles.getHighWaterMark(), dimension);
+
+			assertTrue(snapshot.size() > 0);
+			assertEquals(getSaved(snapshot), read(write(snapshot)));
+		}
+	}
+
+	@Test
+	public void parallelDecodeMatchesSerialDecode() throws IOException
+	{
+		// Enough portals per dimension for the parallel path, segments of a tenth of that are decoded serially.
+		PortalHandles handles = createHandles(2000);
+		int segmentSize = 200;
+
+		PortalSegmentSnapshot snapshot = PortalSegmentSnapshot.of(handles, 0, handles.getHighWaterMark(), Level.OVERWORLD);
+		List<SavedPortal> parallel = read(write(snapshot));
+		List<SavedPortal> serial = new ArrayList<>();
+
+		for (int from = 0; from < handles.getHighWaterMark(); from += segmentSize)
+		{
+			serial.addAll(read(write(PortalSegmentSnapshot.of(handles, from, from + segmentSize, Level.OVERWORLD))));
+		}
+
+		assertEquals(1000, parallel.size());
+		assertEquals(serial, parallel);
+		assertEquals(getSaved(snapshot), parallel);
+	}
+
+	/**
+	 * Creates portals of all axes in two dimensions, with power and some power gauges.
+	 */
+	static PortalHandles createHandles(int count)
+	{
+		PortalHandles handles = new PortalHandles();
+
+		for (int i = 0; i < count; i++)
+		{
+			Portal portal = createPortal(i);
+			int handle = handles.allocate(portal);
+
+			handles.setPower(handle, i * 7);
+
+			if (i % 3 != 0) handles.setGauges(handle, portal.getFramePositions(false).subList(0, i % 3));
+		}
+
+		return handles;
+	}
+
+	static List<SavedPortal> getSaved(PortalSegmentSnapshot snapshot)
+	{
+		List<SavedPortal> saved = new ArrayList<>(snapshot.size());
+
+		for (int i = 0; i < snapshot.size(); i++)
+		{
+			saved.add(new SavedPortal(snapshot.getPortal(i), snapshot.getHandle(i), snapshot.getPower(i), snapshot.getGauges(i)));
+		}
+
+		return saved;
+	}
+
+	/**
+	 * Writes the snapshot and sends the tag through the binary NBT format, like a save file would.
+	 */
+	static CompoundTag write(PortalSegmentSnapshot snapshot) throws IOException
+	{
+		CompoundTag nbt = new CompoundTag();
+		CompactPortalFormat.write(snapshot, nbt);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		NbtIo.write(nbt, new DataOutputStream(bytes));
+
+		return NbtIo.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+	}
+
+	static List<SavedPortal> read(CompoundTag nbt)
+	{
+		List<SavedPortal> portals = new ArrayList<>();
+
+		assertTrue(CompactPortalFormat.isCompact(nbt));
+		CompactPortalFormat.read(nbt, (portal, handle, power, gauges) -> portals.add(new SavedPortal(portal, handle, power, gauges)));
+
+		return portals;
+	}
+
+	/**
+	 * Creates a portal with a different size, axis and address for every index. Portals
+	 * with an odd index are in the nether.
+	 */
+	private static Portal createPortal(int index)
+	{
+		Axis axis = AXES[index % AXES.length];
+		BlockPos pos1 = new BlockPos(index * 16 - 300, 10 + index, -index * 5);
+		Direction widthDir = (axis == Axis.Z) ? Direction.SOUTH : Direction.EAST;
+		Direction heightDir = (axis == Axis.Y) ? Direction.SOUTH : Direction.UP;
+		BlockPos pos2 = pos1.relative(widthDir, 3 + index % 4);
+		BlockPos pos3 = pos1.relative(heightDir, 4 + index % 3);
+		BlockPos pos4 = pos2.offset(pos3.subtract(pos1));
+		ResourceKey<Level> dimension = (index % 2 == 0) ? Level.OVERWORLD : Level.NETHER;
+
+		return new Portal(dimension, new Address("minecraft:stone", "minecraft:dirt", "minecraft:stone", "minecraft:gold_block" + index % 5), axis,
+			new Corner(pos1, widthDir, heightDir),
+			new Corner(pos2, widthDir.getOpposite(), heightDir),
+			new Corner(pos3, heightDir.getOpposite(), widthDir),
+			new Corner(pos4, heightDir.getOpposite(), widthDir.getOpposite()));
+	}
+
+	/**
+	 * A portal as it is saved. Unlike {@link Portal#equals(Object)}, comparisons include the
+	 * order of the corner facings.
+	 */
+	static final class SavedPortal
+	{
+		private final Portal portal;
+		private final int handle;
+		private final int power;
+		private final List<BlockPos> gauges;
+
+		SavedPortal(Portal portal, int handle, int power, List<BlockPos> gauges)
+		{
+			this.portal = portal;
+			this.handle = handle;
+			this.power = power;
+			this.gauges = (gauges != null) ? gauges : Collections.emptyList();
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof SavedPortal)) return false;
+
+			SavedPortal other = (SavedPortal)obj;
+
+			return portal.equals(other.portal) && portal.getAxis() == other.portal.getAxis() && handle == other.handle && power == other.power
+				&& gauges.equals(other.gauges) && haveSameFacings(portal.getCorner1(), other.portal.getCorner1())
+				&& haveSameFacings(portal.getCorner2(), other.portal.getCorner2()) && haveSameFacings(portal.getCorner3(), other.portal.getCorner3())
+				&& haveSameFacings(portal.getCorner4(), other.portal.getCorner4());
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hash(portal, handle);
+		}
+
+		@Override
+		public String toString()
+		{
+			return handle + ": " + portal.getCorner1().getPos() + " " + portal.getAxis() + " " + portal.getAddress() + " power " + power + " gauges " + gauges;
+		}
+
+		private static boolean haveSameFacings(Corner a, Corner b)
+		{
+			return a.getFacingA() == b.getFacingA() && a.getFacingB() == b.getFacingB();
+		}
+	}
+}
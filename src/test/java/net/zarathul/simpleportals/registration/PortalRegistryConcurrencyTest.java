@@ -0,0 +1,215 @@
+package net.zarathul.simpleportals.registration;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.core.Direction.Axis;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.level.Level;
+import net.zarathul.simpleportals.Settings;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Registers and unregisters portals on one thread while other threads read them the way
+ * entities inside portals do (see {@link PortalRegistry#getPortalAt}).
+ */
+public class PortalRegistryConcurrencyTest
+{
+	private static final int PORTAL_COUNT = 64;
+	private static final int ROUNDS = 200;
+	private static final int READERS = 4;
+
+	@BeforeAll
+	public static void bootstrap()
+	{
+		SharedConstants.tryDetectVersion();
+		Bootstrap.bootStrap();
+		Settings.maxSize = Settings.maxSizeDefault;
+	}
+
+	@AfterEach
+	public void reset()
+	{
+		PortalRegistry.reset();
+	}
+
+	@Test
+	public void readsDuringRegistrationAreConsistent() throws InterruptedException
+	{
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		CountDownLatch finished = new CountDownLatch(READERS);
+
+		for (int i = 0; i < READERS; i++)
+		{
+			Thread reader = new Thread(() -> {
+				try
+				{
+					while (!done.get())
+					{
+						for (int p = 0; p < PORTAL_COUNT; p++) checkRead(p);
+					}
+				}
+				catch (Throwable ex)
+				{
+					failure.compareAndSet(null, ex);
+				}
+				finally
+				{
+					finished.countDown();
+				}
+			}, "Portal reader " + i);
+
+			reader.start();
+		}
+
+		for (int round = 0; round < ROUNDS && failure.get() == null; round++)
+		{
+			for (int p = 0; p < PORTAL_COUNT; p++)
+			{
+				PortalRegistry.loadPortal(createPortal(p), -1, getExpectedPower(p), Collections.emptyList());
+			}
+
+			PortalRegistry.onDimensionLoaded(Level.OVERWORLD);
+
+			PortalRegistry.unloadDimension(Level.OVERWORLD);
+		}
+
+		done.set(true);
+		assertTrue(finished.await(30, TimeUnit.SECONDS), "Readers did not finish.");
+
+		if (failure.get() != null) throw new AssertionError("Inconsistent read.", failure.get());
+	}
+
+	@Test
+	public void readsSeeRegisteredPortals()
+	{
+		List<Portal> portals = createPortals();
+
+		for (int p = 0; p < PORTAL_COUNT; p++)
+		{
+			PortalRegistry.loadPortal(portals.get(p), -1, getExpectedPower(p), Collections.emptyList());
+		}
+
+		PortalRegistry.onDimensionLoaded(Level.OVERWORLD);
+
+		for (int p = 0; p < PORTAL_COUNT; p++)
+		{
+			Portal found = PortalRegistry.getPortalAt(getInnerPos(p), Level.OVERWORLD);
+
+			assertSame(portals.get(p), found);
+			assertEquals(getExpectedPower(p), PortalRegistry.getPower(found));
+		}
+
+		PortalRegistry.unloadDimension(Level.OVERWORLD);
+
+		assertNull(PortalRegistry.getPortalAt(getInnerPos(0), Level.OVERWORLD));
+		assertEquals(0, PortalRegistry.getPower(portals.get(0)));
+	}
+
+	@Test
+	public void snapshotsShareUnchangedDimensions()
+	{
+		for (int p = 0; p < PORTAL_COUNT; p++)
+		{
+			PortalRegistry.loadPortal(createPortal(p, Level.OVERWORLD), -1, 0, Collections.emptyList());
+			PortalRegistry.loadPortal(createPortal(p, Level.NETHER), -1, 0, Collections.emptyList());
+		}
+
+		PortalRegistry.onDimensionLoaded(Level.OVERWORLD);
+		PortalRegistry.onDimensionLoaded(Level.NETHER);
+
+		PortalRegistrySnapshot before = PortalRegistry.getSnapshot();
+		List<Portal> overworldPortals = before.getPortalsInDimension(Level.OVERWORLD);
+
+		assertEquals(PORTAL_COUNT, overworldPortals.size());
+		assertEquals(PORTAL_COUNT * 2, before.getAllPortals().size());
+
+		PortalRegistry.unloadDimension(Level.NETHER);
+
+		PortalRegistrySnapshot after = PortalRegistry.getSnapshot();
+
+		assertTrue(before.isStale());
+		assertSame(overworldPortals, after.getPortalsInDimension(Level.OVERWORLD));
+		assertTrue(after.getPortalsInDimension(Level.NETHER).isEmpty());
+		assertEquals(PORTAL_COUNT, after.getAllPortals().size());
+		assertEquals(1, after.getAddresses().get(overworldPortals.get(0).getAddress()).size());
+		assertSame(overworldPortals.get(0), after.getPortalAt(overworldPortals.get(0).getCorner1().getPos(), Level.OVERWORLD));
+		assertNull(after.getPortalAt(getInnerPos(0), Level.NETHER));
+	}
+
+	private static void checkRead(int index)
+	{
+		BlockPos pos = getInnerPos(index);
+		Portal portal = PortalRegistry.getPortalAt(pos, Level.OVERWORLD);
+
+		if (portal != null)
+		{
+			assertTrue(portal.getBounds().isInside(pos), "Portal does not contain the position.");
+
+			int power = PortalRegistry.getPower(portal);
+			assertTrue(power == 0 || power == getExpectedPower(index), "Power of another portal: " + power);
+		}
+
+		for (Portal other : PortalRegistry.getPortalsAt(pos, Level.OVERWORLD))
+		{
+			assertTrue(other.getBounds().isInside(pos), "Portal does not contain the position.");
+		}
+	}
+
+	private static List<Portal> createPortals()
+	{
+		List<Portal> portals = new ArrayList<>(PORTAL_COUNT);
+		for (int p = 0; p < PORTAL_COUNT; p++) portals.add(createPortal(p));
+
+		return portals;
+	}
+
+	/**
+	 * Creates a 2x3 portal standing on the x axis. Portals are 8 blocks apart.
+	 */
+	private static Portal createPortal(int index)
+	{
+		return createPortal(index, Level.OVERWORLD);
+	}
+
+	private static Portal createPortal(int index, ResourceKey<Level> dimension)
+	{
+		BlockPos pos1 = new BlockPos(index * 8, 64, 0);
+		BlockPos pos2 = pos1.east(3);
+		BlockPos pos3 = pos1.above(4);
+		BlockPos pos4 = pos2.above(4);
+
+		return new Portal(dimension, new Address("minecraft:stone", "minecraft:stone", "minecraft:stone", "minecraft:stone" + index), Axis.X,
+			new Corner(pos1, Direction.EAST, Direction.UP),
+			new Corner(pos2, Direction.WEST, Direction.UP),
+			new Corner(pos3, Direction.EAST, Direction.DOWN),
+			new Corner(pos4, Direction.WEST, Direction.DOWN));
+	}
+
+	private static BlockPos getInnerPos(int index)
+	{
+		return new BlockPos(index * 8 + 1, 65, 0);
+	}
+
+	private static int getExpectedPower(int index)
+	{
+		return index + 1;
+	}
+}
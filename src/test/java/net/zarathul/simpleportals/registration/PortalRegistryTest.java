@@ -0,0 +1,262 @@
+package net.zarathul.simpleportals.registration;
+
+import com.google.common.collect.ImmutableList;
+import com.sun.management.ThreadMXBean;
+import net.minecraft.SharedConstants;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.core.Direction.Axis;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.level.Level;
+import net.zarathul.simpleportals.Settings;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Tests for the portal queries and batch operations of {@link PortalRegistry}.
+ */
+public class PortalRegistryTest
+{
+	private static final int PORTAL_COUNT = 16;
+	private static final int LOOKUPS = 100000;
+	// Leaves room for the allocation counter itself.
+	private static final long MAX_ALLOCATED_BYTES = 1024;
+
+	@BeforeAll
+	public static void bootstrap()
+	{
+		SharedConstants.tryDetectVersion();
+		Bootstrap.bootStrap();
+		Settings.maxSize = Settings.maxSizeDefault;
+	}
+
+	@AfterEach
+	public void reset()
+	{
+		PortalRegistry.reset();
+	}
+
+	@Test
+	public void lookupsByPositionDoNotAllocate()
+	{
+		ThreadMXBean threads = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled(), "Allocation counting is not supported.");
+
+		for (int p = 0; p < PORTAL_COUNT; p++)
+		{
+			PortalRegistry.loadPortal(createPortal(p), -1, 0, Collections.emptyList());
+		}
+
+		PortalRegistry.onDimensionLoaded(Level.OVERWORLD);
+
+		// A portal block, a frame block shared by two portals and a position without a portal.
+		BlockPos[] positions = { new BlockPos(1, 65, 0), new BlockPos(3, 65, 0), new BlockPos(-10, 65, 0) };
+		int[] expectedCounts = { 1, 2, 0 };
+
+		// The first lookup builds the snapshot.
+		lookUp(positions, expectedCounts, LOOKUPS);
+
+		long before = threads.getCurrentThreadAllocatedBytes();
+		lookUp(positions, expectedCounts, LOOKUPS);
+		long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+		assertTrue(allocated <= MAX_ALLOCATED_BYTES, "Lookups allocated " + allocated + " bytes.");
+	}
+
+	@Test
+	public void batchesMatchSingleChanges()
+	{
+		Map<Portal, List<BlockPos>> portalsAndGauges = new LinkedHashMap<>();
+
+		for (int p = 0; p < PORTAL_COUNT; p++)
+		{
+			Portal portal = createPortal(p);
+			// Neighbouring portals share the gauge in their common frame column.
+			portalsAndGauges.put(portal, ImmutableList.of(portal.getCorner1().getPos().above(), portal.getCorner2().getPos().above()));
+		}
+
+		// One portal at a time.
+		Set<BlockPos> singleGauges = new HashSet<>();
+		for (Map.Entry<Portal, List<BlockPos>> entry : portalsAndGauges.entrySet())
+		{
+			assertEquals(1, PortalRegistry.addAll(Level.OVERWORLD, null, Collections.singletonMap(entry.getKey(), entry.getValue()), singleGauges));
+		}
+
+		RegistryState singleState = new RegistryState();
+		PortalRegistry.reset();
+
+		// All at once, including a portal of another dimension that must be skipped.
+		Map<Portal, List<BlockPos>> batch = new LinkedHashMap<>(portalsAndGauges);
+		batch.put(createPortal(0, Level.NETHER), Collections.emptyList());
+
+		Set<BlockPos> batchGauges = new HashSet<>();
+		long version = PortalRegistry.getVersion();
+
+		assertEquals(PORTAL_COUNT, PortalRegistry.addAll(Level.OVERWORLD, null, batch, batchGauges));
+		assertEquals(0, PortalRegistry.addAll(Level.OVERWORLD, null, portalsAndGauges, batchGauges));
+		assertEquals(version + 1, PortalRegistry.getVersion());
+		assertEquals(singleGauges, batchGauges);
+		assertEquals(singleState, new RegistryState());
+
+		// Remove every other portal, once one at a time and once all at once.
+		List<Portal> toRemove = new ArrayList<>();
+		for (int p = 0; p < PORTAL_COUNT; p += 2) toRemove.add(createPortal(p));
+
+		Set<BlockPos> batchRemovedGauges = new HashSet<>();
+		version = PortalRegistry.getVersion();
+
+		assertEquals(toRemove, PortalRegistry.removeAll(Level.OVERWORLD, toRemove, batchRemovedGauges));
+		assertEquals(version + 1, PortalRegistry.getVersion());
+
+		RegistryState batchState = new RegistryState();
+		PortalRegistry.reset();
+		PortalRegistry.addAll(Level.OVERWORLD, null, portalsAndGauges, new HashSet<>());
+
+		Set<BlockPos> singleRemovedGauges = new HashSet<>();
+		for (Portal portal : toRemove)
+		{
+			assertEquals(1, PortalRegistry.removeAll(Level.OVERWORLD, Collections.singletonList(portal), singleRemovedGauges).size());
+		}
+
+		assertEquals(singleRemovedGauges, batchRemovedGauges);
+		assertEquals(batchState, new RegistryState());
+	}
+
+	@Test
+	public void parallelLegacyDecodeMatchesSerialDecode()
+	{
+		int count = 1000;
+		CompoundTag portalsTag = new CompoundTag();
+		CompoundTag powerTag = new CompoundTag();
+		Map<Portal, Integer> expected = new HashMap<>();
+
+		for (int p = 0; p < count; p++)
+		{
+			CompoundTag portalTag = createPortal(p).serializeNBT();
+			portalsTag.put(String.valueOf(p), portalTag);
+			powerTag.putInt(String.valueOf(p), getExpectedPower(p));
+			expected.put(Portal.deserializeNBT(portalTag), getExpectedPower(p));
+		}
+
+		CompoundTag nbt = new CompoundTag();
+		nbt.put("portals", portalsTag);
+		nbt.put("portalBlocks", new CompoundTag());
+		nbt.put("power", powerTag);
+
+		assertEquals(Collections.singleton(Level.OVERWORLD), PortalRegistry.readFromNBT(nbt, Collections.emptySet()));
+
+		Map<Portal, Integer> loaded = new HashMap<>();
+		for (Portal portal : PortalRegistry.getAllPortals()) loaded.put(portal, PortalRegistry.getPower(portal));
+
+		assertEquals(expected, loaded);
+	}
+
+	private static void lookUp(BlockPos[] positions, int[] expectedCounts, int rounds)
+	{
+		for (int round = 0; round < rounds; round++)
+		{
+			for (int i = 0; i < positions.length; i++)
+			{
+				if (PortalRegistry.getPortalsAt(positions[i], Level.OVERWORLD).size() != expectedCounts[i] ||
+					PortalRegistry.isPortalAt(positions[i], Level.OVERWORLD) != (expectedCounts[i] > 0) ||
+					(PortalRegistry.getPortalAt(positions[i], Level.OVERWORLD) != null) != (expectedCounts[i] > 0))
+				{
+					// Only builds the message when a lookup is wrong, the assertions would allocate on every call.
+					fail("Wrong lookup result at " + positions[i]);
+				}
+			}
+		}
+	}
+
+	private static Portal createPortal(int index)
+	{
+		return createPortal(index, Level.OVERWORLD);
+	}
+
+	private static int getExpectedPower(int index)
+	{
+		return index % 50 + 1;
+	}
+
+	/**
+	 * Creates a 2x3 portal standing on the x axis. Neighbouring portals share a frame column.
+	 */
+	private static Portal createPortal(int index, ResourceKey<Level> dimension)
+	{
+		BlockPos pos1 = new BlockPos(index * 3, 64, 0);
+		BlockPos pos2 = pos1.east(3);
+		BlockPos pos3 = pos1.above(4);
+		BlockPos pos4 = pos2.above(4);
+
+		return new Portal(dimension, new Address("minecraft:stone", "minecraft:stone", "minecraft:stone", "minecraft:stone" + index), Axis.X,
+			new Corner(pos1, Direction.EAST, Direction.UP),
+			new Corner(pos2, Direction.WEST, Direction.UP),
+			new Corner(pos3, Direction.EAST, Direction.DOWN),
+			new Corner(pos4, Direction.WEST, Direction.DOWN));
+	}
+
+	/**
+	 * What queries report about the registered overworld portals, for comparing registry states.
+	 */
+	private static final class RegistryState
+	{
+		private final Map<BlockPos, List<Portal>> positions = new HashMap<>();
+		private final Map<Portal, List<BlockPos>> gauges = new HashMap<>();
+		private final Map<Address, Set<Portal>> addresses = new HashMap<>();
+
+		private RegistryState()
+		{
+			for (BlockPos pos : BlockPos.betweenClosed(new BlockPos(-1, 63, 0), new BlockPos(PORTAL_COUNT * 3 + 4, 69, 0)))
+			{
+				List<Portal> portals = PortalRegistry.getPortalsAt(pos, Level.OVERWORLD);
+				if (!portals.isEmpty()) positions.put(pos.immutable(), new ArrayList<>(portals));
+			}
+
+			for (Portal portal : PortalRegistry.getPortalsInDimension(Level.OVERWORLD))
+			{
+				gauges.put(portal, PortalRegistry.getPowerGauges(portal));
+				addresses.put(portal.getAddress(), new HashSet<>(PortalRegistry.getPortalsWithAddress(portal.getAddress())));
+			}
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof RegistryState)) return false;
+
+			RegistryState other = (RegistryState)obj;
+
+			return positions.equals(other.positions) && gauges.equals(other.gauges) && addresses.equals(other.addresses);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return positions.hashCode();
+		}
+
+		@Override
+		public String toString()
+		{
+			return positions.size() + " positions, " + gauges.size() + " portals";
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package net.zarathul.simpleportals.registration;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.core.Direction.Axis;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.level.Level;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Compares the lookups of {@link PortalSpatialIndex} with the positions generated from the
+ * portals geometry (see {@link Portal#getAllPositions()}).
+ */
+public class PortalSpatialIndexTest
+{
+	private static final BlockPos SEARCH_MIN = new BlockPos(-2, 62, -2);
+	private static final BlockPos SEARCH_MAX = new BlockPos(36, 72, 20);
+
+	@BeforeAll
+	public static void bootstrap()
+	{
+		SharedConstants.tryDetectVersion();
+		Bootstrap.bootStrap();
+	}
+
+	@Test
+	public void lookupsMatchPortalGeometry()
+	{
+		List<Portal> portals = createPortals();
+		PortalSpatialIndex index = new PortalSpatialIndex();
+
+		for (Portal portal : portals) index.add(portal);
+
+		checkLookups(index, portals);
+	}
+
+	@Test
+	public void lookupsMatchPortalGeometryAfterRemoval()
+	{
+		List<Portal> portals = createPortals();
+		PortalSpatialIndex index = new PortalSpatialIndex();
+
+		for (Portal portal : portals) index.add(portal);
+
+		// The second portal shares a frame column with the first one.
+		index.remove(portals.get(1));
+		portals.remove(1);
+
+		checkLookups(index, portals);
+
+		for (Portal portal : portals) index.remove(portal);
+
+		checkLookups(index, Collections.emptyList());
+	}
+
+	private static void checkLookups(PortalSpatialIndex index, List<Portal> portals)
+	{
+		Map<BlockPos, List<Portal>> expected = new HashMap<>();
+
+		for (Portal portal : portals)
+		{
+			for (BlockPos pos : portal.getAllPositions())
+			{
+				expected.computeIfAbsent(pos.immutable(), key -> new ArrayList<>()).add(portal);
+			}
+		}
+
+		for (BlockPos pos : BlockPos.betweenClosed(SEARCH_MIN, SEARCH_MAX))
+		{
+			List<Portal> expectedPortals = expected.getOrDefault(pos, Collections.emptyList());
+
+			assertEquals(expectedPortals, index.get(pos), "Wrong portals at " + pos);
+			assertSame(expectedPortals.isEmpty() ? null : expectedPortals.get(0), index.getFirst(pos), "Wrong first portal at " + pos);
+			assertEquals(!expectedPortals.isEmpty(), index.contains(pos), "Wrong result at " + pos);
+		}
+	}
+
+	/**
+	 * Creates two portals that share a frame column, a portal that crosses a chunk border
+	 * on the x axis and a horizontal portal that crosses a chunk border on the z axis.
+	 */
+	private static List<Portal> createPortals()
+	{
+		List<Portal> portals = new ArrayList<>();
+
+		portals.add(createPortal(new BlockPos(0, 64, 0), new BlockPos(3, 68, 0), Axis.X));
+		portals.add(createPortal(new BlockPos(3, 64, 0), new BlockPos(6, 68, 0), Axis.X));
+		portals.add(createPortal(new BlockPos(14, 64, 5), new BlockPos(18, 69, 5), Axis.X));
+		portals.add(createPortal(new BlockPos(30, 70, 14), new BlockPos(33, 70, 17), Axis.Y));
+
+		return portals;
+	}
+
+	private static Portal createPortal(BlockPos pos1, BlockPos pos4, Axis axis)
+	{
+		BlockPos pos2 = new BlockPos(pos4.getX(), pos1.getY(), pos1.getZ());
+		BlockPos pos3 = (axis == Axis.Y) ? new BlockPos(pos1.getX(), pos1.getY(), pos4.getZ()) : new BlockPos(pos1.getX(), pos4.getY(), pos1.getZ());
+		Direction facing = (axis == Axis.Y) ? Direction.SOUTH : Direction.UP;
+
+		return new Portal(Level.OVERWORLD, new Address("minecraft:stone", "minecraft:stone", "minecraft:stone", "minecraft:stone"), axis,
+			new Corner(pos1, Direction.EAST, facing),
+			new Corner(pos2, Direction.WEST, facing),
+			new Corner(pos3, Direction.EAST, facing.getOpposite()),
+			new Corner(pos4, Direction.WEST, facing.getOpposite()));
+	}
+}
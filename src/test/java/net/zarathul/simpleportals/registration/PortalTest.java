@@ -0,0 +1,93 @@
+package net.zarathul.simpleportals.registration;
+
+import com.google.common.collect.ImmutableList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import net.minecraft.SharedConstants;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.core.Direction.Axis;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.level.Level;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Compares the packed frame positions of portals (see {@link Portal#getPackedFramePositions(boolean)})
+ * with the frame derived from the portals bounds.
+ */
+public class PortalTest
+{
+	@BeforeAll
+	public static void bootstrap()
+	{
+		SharedConstants.tryDetectVersion();
+		Bootstrap.bootStrap();
+	}
+
+	@Test
+	public void packedFrameMatchesGeometry()
+	{
+		for (Axis axis : Axis.values())
+		{
+			for (int width = 3; width <= 6; width++)
+			{
+				for (int height = 3; height <= 5; height++)
+				{
+					checkFrame(createPortal(new BlockPos(-17, 40, 9), axis, width, height));
+				}
+			}
+		}
+	}
+
+	private static void checkFrame(Portal portal)
+	{
+		// The frame is everything but the portal blocks.
+		Set<BlockPos> expected = new HashSet<>();
+		for (BlockPos pos : portal.getAllPositions()) expected.add(pos.immutable());
+		for (BlockPos pos : portal.getPortalPositions()) expected.remove(pos);
+
+		LongList packed = portal.getPackedFramePositions(true);
+		LongList packedWithoutCorners = portal.getPackedFramePositions(false);
+		List<BlockPos> frame = new ArrayList<>(packed.size());
+		for (int i = 0; i < packed.size(); i++) frame.add(BlockPos.of(packed.getLong(i)));
+
+		assertEquals(expected.size(), frame.size(), "Duplicate or missing frame positions.");
+		assertEquals(expected, new HashSet<>(frame));
+		assertEquals(ImmutableList.of(portal.getCorner1().getPos(), portal.getCorner2().getPos(), portal.getCorner3().getPos(), portal.getCorner4().getPos()), frame.subList(frame.size() - 4, frame.size()));
+		assertEquals(packed.subList(0, packed.size() - 4), packedWithoutCorners);
+
+		assertEquals(frame, portal.getFramePositions());
+		assertEquals(frame.subList(0, frame.size() - 4), portal.getFramePositions(false));
+
+		// The positions are computed once and shared afterwards.
+		assertSame(packed, portal.getPackedFramePositions(true));
+		assertSame(packedWithoutCorners, portal.getPackedFramePositions(false));
+	}
+
+	/**
+	 * Creates a portal including its frame. Vertical portals get their width along the x or z axis,
+	 * horizontal ones along the x axis and their height along the z axis.
+	 */
+	private static Portal createPortal(BlockPos pos1, Axis axis, int width, int height)
+	{
+		Direction widthDir = (axis == Axis.Z) ? Direction.SOUTH : Direction.EAST;
+		Direction heightDir = (axis == Axis.Y) ? Direction.SOUTH : Direction.UP;
+		BlockPos pos2 = pos1.relative(widthDir, width - 1);
+		BlockPos pos3 = pos1.relative(heightDir, height - 1);
+		BlockPos pos4 = pos2.relative(heightDir, height - 1);
+
+		return new Portal(Level.OVERWORLD, new Address("minecraft:stone", "minecraft:stone", "minecraft:stone", "minecraft:stone"), axis,
+			new Corner(pos1, widthDir, heightDir),
+			new Corner(pos2, widthDir.getOpposite(), heightDir),
+			new Corner(pos3, widthDir, heightDir.getOpposite()),
+			new Corner(pos4, widthDir.getOpposite(), heightDir.getOpposite()));
+	}
+}